@@ -0,0 +1,250 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Picks CHAIN_LENGTH and TABLE_LENGTH by experiment. Trial tables are built
+ * over a grid of chain and table lengths, each in a word space 2^scale times
+ * smaller than the real one, with 2^scale times fewer chains. Coverage and
+ * false alarms depend on the chain length and on the ratio of chains to
+ * words, so a trial covers the same fraction of its space and does the same
+ * work per target as the full table would. The trial tables are built in
+ * parallel, then their sample cracks are timed one after another, so the
+ * time of one does not depend on what else is running. Each trial reports
+ * the coverage of its table, the success rate and time per target of a
+ * sample crack, and the bytes of the full table in the TableFile format.
+ * Settings within the memory budget that reach the target success
+ * rate are printed, with the Pareto-optimal ones marked.
+ *
+ * Trial tables have no check bits, so long chains pay more for false alarms
+ * than they would in the real table.
+ *
+ * Usage: java Autotune budget=bytes success=rate [scale=4]
+ * [chain=111,222,444]
+ */
+public class Autotune {
+
+	// enough that the success rate is within a few percent
+	private static final int	TARGETS		= 1024;
+	private static final int	SEED		= 6972868;
+	// chains a trial may try per chain it keeps
+	private static final int	ATTEMPTS	= 4;
+
+	public static void main(String[] args) {
+		long budget = 1 << 20;
+		double success = 0.5;
+		int scale = 4;
+		int[] chainLengths = { 45, 64, 91, 128, 181, 256, 362, 512 };
+		for (String arg : args) {
+			if (arg.startsWith("budget=")) {
+				budget = Long.parseLong(arg.substring(7));
+			} else if (arg.startsWith("success=")) {
+				success = Double.parseDouble(arg.substring(8));
+			} else if (arg.startsWith("scale=")) {
+				scale = Integer.parseInt(arg.substring(6));
+			} else if (arg.startsWith("chain=")) {
+				String[] values = arg.substring(6).split(",");
+				chainLengths = new int[values.length];
+				for (int i = 0; i < values.length; i++) {
+					chainLengths[i] = Integer.parseInt(values[i]);
+				}
+			}
+		}
+
+		// table lengths from the most the budget holds down to a quarter of it
+		long most = (budget - TableFile.HEADER_BYTES) / TableFile.RECORD_BYTES;
+		List<Trial> trials = new ArrayList<>();
+		for (int chainLength : chainLengths) {
+			for (int i = 0; i < 5; i++) {
+				long tableLength = (long) (most / Math.pow(2, i / 2.0));
+				long chains = tableLength >> scale;
+				// no point in more chain positions than words in the space
+				if (chains > 0
+						&& chains * chainLength <= ATTEMPTS
+								* (WordBitmap.WORD_SPACE >> scale)) {
+					trials.add(new Trial(chainLength, (int) chains, scale));
+				}
+			}
+		}
+		System.out.println("Running " + trials.size() + " trials at 1/"
+				+ (1 << scale) + " scale");
+		if (!trials.isEmpty()) {
+			new ForkJoinPool().invoke(new TrialTask(trials, 0, trials.size()));
+		}
+		for (Trial trial : trials) {
+			trial.crack();
+		}
+
+		List<Trial> feasible = new ArrayList<>();
+		for (Trial trial : trials) {
+			if (trial.bytes() <= budget && trial.success >= success) {
+				feasible.add(trial);
+			}
+		}
+		System.out.println(String.format("%8s %12s %10s %9s %9s %12s %s",
+				"chain", "table", "bytes", "coverage", "success",
+				"us/target", ""));
+		for (Trial trial : trials) {
+			boolean optimal = feasible.contains(trial);
+			for (Trial other : feasible) {
+				optimal &= !other.dominates(trial);
+			}
+			System.out.println(String.format(
+					"%8d %12d %10d %8.1f%% %8.1f%% %12.1f %s",
+					trial.chainLength, trial.tableLength(), trial.bytes(),
+					trial.coverage * 100, trial.success * 100,
+					trial.nsPerTarget / 1000, optimal ? "pareto"
+							: feasible.contains(trial) ? "" : "-"));
+		}
+		if (feasible.isEmpty()) {
+			System.out.println("No setting within " + budget
+					+ " bytes reaches " + success * 100 + "% success");
+		}
+	}
+
+	/**
+	 * A trial table in a word space of WORD_SPACE >> scale words.
+	 */
+	private static class Trial {
+
+		final int						chainLength;
+		final int						scale;
+		private final int				mask;
+		private final int				chainsWanted;
+		private final EndpointHashIndex	table;
+		private final Sha1				sha1	= new Sha1();
+		private final int[]				digest	= new int[Sha1.DIGEST_INTS];
+		private Random					random;
+
+		// results of build() and crack()
+		int								chains;
+		double							coverage;
+		double							success;
+		double							nsPerTarget;
+
+		Trial(int chainLength, int chains, int scale) {
+			this.chainLength = chainLength;
+			this.chainsWanted = chains;
+			this.scale = scale;
+			this.mask = (WordBitmap.WORD_SPACE >> scale) - 1;
+			this.table = new EndpointHashIndex(chains);
+		}
+
+		long tableLength() {
+			return (long) chains << scale;
+		}
+
+		long bytes() {
+			return TableFile.HEADER_BYTES + tableLength()
+					* TableFile.RECORD_BYTES;
+		}
+
+		// no slower, no larger and no less successful, and better in one
+		boolean dominates(Trial other) {
+			return nsPerTarget <= other.nsPerTarget
+					&& bytes() <= other.bytes()
+					&& success >= other.success
+					&& (nsPerTarget < other.nsPerTarget
+							|| bytes() < other.bytes()
+							|| success > other.success);
+		}
+
+		void build() {
+			random = new Random(SEED + chainLength * 31 + chainsWanted);
+			BitSet covered = new BitSet(mask + 1);
+			int[] words = new int[chainLength];
+			for (int n = 0; n < ATTEMPTS * chainsWanted
+					&& chains < chainsWanted; n++) {
+				int start = random.nextInt() & mask;
+				if (covered.get(start)) {
+					continue;
+				}
+				int word = start;
+				for (int j = 0; j < chainLength; j++) {
+					words[j] = word;
+					sha1.hash(word, digest);
+					word = Sha1.reduce(digest, j) & mask;
+				}
+				// merged chains are dropped, as in Rainbow.build(), and cover
+				// nothing
+				if (table.put(EndpointHashIndex.key(digest), start)) {
+					chains++;
+					for (int w : words) {
+						covered.set(w);
+					}
+				}
+			}
+			coverage = covered.cardinality() / (double) (mask + 1);
+		}
+
+		// times a sample crack of the table built
+		void crack() {
+			int[][] targets = new int[TARGETS][Sha1.DIGEST_INTS];
+			for (int[] target : targets) {
+				sha1.hash(random.nextInt() & mask, target);
+			}
+			int found = 0;
+			long startTime = System.nanoTime();
+			for (int[] target : targets) {
+				if (search(target) >= 0) {
+					found++;
+				}
+			}
+			nsPerTarget = (System.nanoTime() - startTime) / (double) TARGETS;
+			success = found / (double) TARGETS;
+		}
+
+		private int search(int[] target) {
+			for (int j = chainLength - 1; j >= 0; j--) {
+				System.arraycopy(target, 0, digest, 0, Sha1.DIGEST_INTS);
+				for (int k = j; k < chainLength - 1; k++) {
+					sha1.hash(Sha1.reduce(digest, k) & mask, digest);
+				}
+				int start = table.get(EndpointHashIndex.key(digest));
+				if (start < 0) {
+					continue;
+				}
+				int word = start;
+				for (int k = 0; k < j; k++) {
+					sha1.hash(word, digest);
+					word = Sha1.reduce(digest, k) & mask;
+				}
+				sha1.hash(word, digest);
+				if (Arrays.equals(digest, target)) {
+					return word;
+				}
+			}
+			return -1;
+		}
+	}
+
+	private static class TrialTask extends RecursiveAction {
+
+		private static final long	serialVersionUID	= 1L;
+
+		private final List<Trial>	trials;
+		private final int			lo;
+		private final int			hi;
+
+		TrialTask(List<Trial> trials, int lo, int hi) {
+			this.trials = trials;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		protected void compute() {
+			if (hi - lo > 1) {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new TrialTask(trials, lo, mid), new TrialTask(
+						trials, mid, hi));
+				return;
+			}
+			trials.get(lo).build();
+		}
+	}
+}
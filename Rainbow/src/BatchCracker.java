@@ -0,0 +1,328 @@
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Position-major rainbow table search. Instead of finishing one target before
+ * starting the next, every outstanding target is tried at position j, on
+ * every table, before any target moves on to j - 1. All tail walks of a step
+ * have the same length, so they fill the SHA-1 lanes completely. Their
+ * endpoints are probed as one batch, and a target is dropped from the batch
+ * as soon as its preimage is found. With a TailCache, a tail walk stops as
+ * soon as it reaches a word that an earlier walk passed at the same position.
+ */
+class BatchCracker {
+
+	private final EndpointIndex[]	tables;
+	private final ForkJoinPool		pool;
+	private final TailCache			cache;
+
+	// state of the current step, shared with the tasks
+	private List<int[]>				targets;
+	private int[]					active;
+	private long[]					keys;
+	private int[]					starts;
+	private int[]					checks;
+	private int[]					words;
+	private int						position;
+	private int						table;
+	private int						offset;
+
+	/**
+	 * @param cache
+	 *            memo of tail walks, or null to walk every tail to the end
+	 */
+	BatchCracker(EndpointIndex[] tables, ForkJoinPool pool, TailCache cache) {
+		this.tables = tables;
+		this.pool = pool;
+		this.cache = cache;
+	}
+
+	/**
+	 * Told about each target as soon as it leaves the batch.
+	 */
+	interface Listener {
+
+		/**
+		 * Called on the searching thread with the index of a target in
+		 * targets and its preimage, or -1 once it cannot be found.
+		 */
+		void resolved(int index, int word);
+	}
+
+	/**
+	 * @return the preimage of every target, or -1 where none was found, in
+	 *         the order of targets
+	 */
+	int[] searchAll(List<int[]> targets) {
+		return searchAll(targets, null);
+	}
+
+	/**
+	 * Searches as searchAll(targets), telling listener about each target as
+	 * it is resolved. The listener then records the latency of the target,
+	 * since it knows when the target was asked for.
+	 */
+	int[] searchAll(List<int[]> targets, Listener listener) {
+		long startTime = System.nanoTime();
+		int n = targets.size();
+		this.targets = targets;
+		active = new int[n];
+		keys = new long[n];
+		starts = new int[n];
+		checks = new int[n];
+		words = new int[n];
+		int[] results = new int[n];
+		for (int i = 0; i < n; i++) {
+			active[i] = i;
+			results[i] = -1;
+		}
+
+		int remaining = n;
+		for (int j = Rainbow.CHAIN_LENGTH - 1; j >= 0 && remaining > 0; j--) {
+			for (int t = 0; t < tables.length && remaining > 0; t++) {
+				position = j;
+				table = t;
+				offset = Rainbow.reduceOffset(t);
+				pool.invoke(new WalkTask(0, remaining));
+				Metrics.probes.addAndGet(remaining);
+				tables[t].getAll(keys, remaining, starts);
+				pool.invoke(new PreimageTask(0, remaining));
+
+				int kept = 0;
+				for (int a = 0; a < remaining; a++) {
+					if (words[a] >= 0) {
+						results[active[a]] = words[a];
+						resolved(listener, active[a], words[a], startTime);
+					} else {
+						active[kept++] = active[a];
+					}
+				}
+				remaining = kept;
+			}
+		}
+		// a target that was not found took the whole search
+		for (int a = 0; a < remaining; a++) {
+			resolved(listener, active[a], -1, startTime);
+		}
+		this.targets = null;
+		return results;
+	}
+
+	private static void resolved(Listener listener, int index, int word,
+			long startTime) {
+		if (listener != null) {
+			listener.resolved(index, word);
+		} else {
+			Metrics.latency(System.nanoTime() - startTime);
+		}
+	}
+
+	/**
+	 * Walks the targets active[lo..hi) from position to the end of the chain,
+	 * a lane group at a time, leaving their endpoint keys in keys and the
+	 * check bits of their walks in checks.
+	 */
+	private class WalkTask extends RecursiveAction {
+
+		private static final long	serialVersionUID	= 1L;
+		private static final int	THRESHOLD			= 4 * Sha1Lanes.LANES;
+
+		private final int			lo;
+		private final int			hi;
+
+		WalkTask(int lo, int hi) {
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		protected void compute() {
+			if (hi - lo > THRESHOLD) {
+				int mid = ((lo + hi) >>> 1) & -Sha1Lanes.LANES;
+				invokeAll(new WalkTask(lo, mid), new WalkTask(mid, hi));
+				return;
+			}
+			if (cache != null) {
+				walkCached();
+				return;
+			}
+			Sha1Lanes lanes = new Sha1Lanes();
+			int[][] digest = lanes.digest;
+			for (int from = lo; from < hi; from += Sha1Lanes.LANES) {
+				int to = Math.min(hi, from + Sha1Lanes.LANES);
+				for (int l = 0; l < Sha1Lanes.LANES; l++) {
+					// spare lanes repeat the last target
+					int[] target = targets.get(active[Math.min(from + l,
+							to - 1)]);
+					for (int i = 0; i < Sha1.DIGEST_INTS; i++) {
+						digest[i][l] = target[i];
+					}
+				}
+				for (int a = from; a < to; a++) {
+					checks[a] = 0;
+				}
+				for (int k = position; k < Rainbow.CHAIN_LENGTH - 1; k++) {
+					lanes.reduce(k + offset);
+					int bit = CheckBits.bit(k + 1);
+					if (bit >= 0) {
+						for (int a = from; a < to; a++) {
+							checks[a] |= (lanes.words[a - from] & 1) << bit;
+						}
+					}
+					lanes.hash();
+				}
+				Metrics.hashes.addAndGet((long) Sha1Lanes.LANES
+						* (Rainbow.CHAIN_LENGTH - 1 - position));
+				for (int a = from; a < to; a++) {
+					keys[a] = lanes.key(a - from);
+				}
+			}
+		}
+
+		/**
+		 * Walks step by step instead of a lane group at a time, so the walks
+		 * that hit the cache drop out and the rest are packed into full
+		 * lane groups for the next step. The words of every walk then go
+		 * into the cache.
+		 */
+		private void walkCached() {
+			int n = hi - lo;
+			int steps = Rainbow.CHAIN_LENGTH - 1 - position;
+			int[][] state = new int[Sha1.DIGEST_INTS][n];
+			// path[w][s] is the word of walk w at position + 1 + s
+			int[][] path = new int[n][steps];
+			int[] length = new int[n];
+			int[] live = new int[n];
+			for (int w = 0; w < n; w++) {
+				int[] target = targets.get(active[lo + w]);
+				for (int i = 0; i < Sha1.DIGEST_INTS; i++) {
+					state[i][w] = target[i];
+				}
+				checks[lo + w] = 0;
+				length[w] = steps;
+				live[w] = w;
+			}
+
+			Sha1Lanes lanes = new Sha1Lanes();
+			int[][] digest = lanes.digest;
+			boolean[] stopped = new boolean[Sha1Lanes.LANES];
+			long[] result = new long[2];
+			long lookups = 0;
+			long hits = 0;
+			long saved = 0;
+			long hashes = 0;
+			int alive = n;
+			for (int k = position; k < Rainbow.CHAIN_LENGTH - 1 && alive > 0;
+					k++) {
+				int p = k + 1;
+				int bit = CheckBits.bit(p);
+				int kept = 0;
+				for (int g = 0; g < alive; g += Sha1Lanes.LANES) {
+					int count = Math.min(Sha1Lanes.LANES, alive - g);
+					for (int l = 0; l < Sha1Lanes.LANES; l++) {
+						// spare lanes repeat the last walk
+						int w = live[g + Math.min(l, count - 1)];
+						for (int i = 0; i < Sha1.DIGEST_INTS; i++) {
+							digest[i][l] = state[i][w];
+						}
+					}
+					lanes.reduce(k + offset);
+					boolean going = false;
+					for (int l = 0; l < count; l++) {
+						int w = live[g + l];
+						int word = lanes.words[l];
+						if (bit >= 0) {
+							checks[lo + w] |= (word & 1) << bit;
+						}
+						path[w][k - position] = word;
+						lookups++;
+						stopped[l] = cache.get(p + offset, word, result);
+						if (stopped[l]) {
+							hits++;
+							saved += Rainbow.CHAIN_LENGTH - 1 - k;
+							keys[lo + w] = result[0];
+							checks[lo + w] |= (int) result[1];
+							length[w] = k - position + 1;
+						} else {
+							going = true;
+						}
+					}
+					if (!going) {
+						continue;
+					}
+					lanes.hash();
+					hashes += Sha1Lanes.LANES;
+					for (int l = 0; l < count; l++) {
+						int w = live[g + l];
+						if (!stopped[l]) {
+							for (int i = 0; i < Sha1.DIGEST_INTS; i++) {
+								state[i][w] = digest[i][l];
+							}
+							live[kept++] = w;
+						}
+					}
+				}
+				alive = kept;
+			}
+			for (int m = 0; m < alive; m++) {
+				int w = live[m];
+				keys[lo + w] = ((long) state[0][w] << 32)
+						| (state[1][w] & 0xffffffffL);
+			}
+
+			for (int w = 0; w < n; w++) {
+				long key = keys[lo + w];
+				int bits = checks[lo + w];
+				for (int s = 0; s < length[w]; s++) {
+					int p = position + 1 + s;
+					cache.put(p + offset, path[w][s], key,
+							bits & CheckBits.from(p));
+				}
+			}
+			cache.count(lookups, hits, saved);
+			Metrics.hashes.addAndGet(hashes);
+		}
+	}
+
+	/**
+	 * Regenerates the chains that matched for active[lo..hi), leaving the
+	 * preimage or -1 in words.
+	 */
+	private class PreimageTask extends RecursiveAction {
+
+		private static final long	serialVersionUID	= 1L;
+		private static final int	THRESHOLD			= 64;
+
+		private final int			lo;
+		private final int			hi;
+
+		PreimageTask(int lo, int hi) {
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		protected void compute() {
+			if (hi - lo > THRESHOLD) {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new PreimageTask(lo, mid), new PreimageTask(mid, hi));
+				return;
+			}
+			Sha1 sha1 = new Sha1();
+			int[] hash = new int[Sha1.DIGEST_INTS];
+			for (int a = lo; a < hi; a++) {
+				words[a] = -1;
+				if (starts[a] >= 0
+						&& Rainbow.checkAlarm(starts[a], checks[a], position)) {
+					words[a] = Rainbow.getPreimage(
+							Rainbow.chainStart(table, starts[a]),
+							targets.get(active[a]), offset, sha1, hash);
+					if (words[a] < 0) {
+						Metrics.falseAlarms.incrementAndGet();
+					}
+				}
+			}
+		}
+	}
+}
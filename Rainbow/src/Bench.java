@@ -0,0 +1,386 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Micro-benchmarks for the hot paths of the rainbow table. Each benchmark runs
+ * in FORKS fresh JVMs, so the code the JIT compiled and the profile it
+ * gathered for one benchmark cannot slow down another, and a lucky or unlucky
+ * compilation shows up as spread between forks. In a fork the benchmark is
+ * calibrated to ITERATION_MS per iteration, run for WARMUP iterations so the
+ * JIT settles, then timed over MEASURE iterations. Results are the mean and
+ * the spread across forks of the time per operation, and the bytes allocated
+ * per operation, read from the thread's allocation counter. A benchmark
+ * returns a value derived from its work so the JIT cannot remove it.
+ *
+ * Usage: java Bench [chain=111,222,444] [filter=substring] [forks=3]
+ */
+public class Bench {
+
+	private static final int		WARMUP			= 10;
+	private static final int		MEASURE			= 5;
+	private static final long		ITERATION_MS	= 500;
+	private static final int		TABLE_SIZE		= 1 << 16;
+	// a fork prints its result on a line starting with this
+	private static final String		RESULT			= "#result ";
+
+	private static volatile long	sink;
+
+	private abstract static class Benchmark {
+
+		final String	name;
+
+		Benchmark(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Performs ops operations.
+		 */
+		abstract long run(int ops) throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int[] chainLengths = { Rainbow.CHAIN_LENGTH };
+		String chain = null;
+		String filter = "";
+		String fork = null;
+		int forks = 3;
+		for (String arg : args) {
+			if (arg.startsWith("chain=")) {
+				chain = arg;
+				String[] values = arg.substring(6).split(",");
+				chainLengths = new int[values.length];
+				for (int i = 0; i < values.length; i++) {
+					chainLengths[i] = Integer.parseInt(values[i]);
+				}
+			} else if (arg.startsWith("filter=")) {
+				filter = arg.substring(7);
+			} else if (arg.startsWith("forks=")) {
+				forks = Integer.parseInt(arg.substring(6));
+			} else if (arg.startsWith("fork=")) {
+				fork = arg.substring(5);
+			}
+		}
+
+		List<Benchmark> benchmarks = benchmarks(chainLengths);
+		if (fork != null) {
+			// in a forked JVM, run only the benchmark named exactly
+			for (Benchmark b : benchmarks) {
+				if (b.name.equals(fork)) {
+					double[] result = measure(b);
+					System.out.println(RESULT + result[0] + " " + result[1]);
+				}
+			}
+			return;
+		}
+		System.out.println(String.format("%-36s %12s %10s %10s", "Benchmark",
+				"ns/op", "+-", "B/op"));
+		for (Benchmark b : benchmarks) {
+			if (b.name.contains(filter)) {
+				report(b.name, chain, forks);
+			}
+		}
+	}
+
+	/**
+	 * Runs the benchmark named name in forks fresh JVMs with the options of
+	 * this one, and prints the mean and spread across them.
+	 */
+	private static void report(String name, String chain, int forks)
+			throws Exception {
+		List<String> command = new ArrayList<>();
+		command.add(System.getProperty("java.home") + File.separator + "bin"
+				+ File.separator + "java");
+		command.addAll(ManagementFactory.getRuntimeMXBean()
+				.getInputArguments());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(Bench.class.getName());
+		if (chain != null) {
+			command.add(chain);
+		}
+		command.add("fork=" + name);
+
+		double[] nsPerOp = new double[forks];
+		double bytesPerOp = 0;
+		for (int f = 0; f < forks; f++) {
+			Process process = new ProcessBuilder(command).redirectErrorStream(
+					true).start();
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+					process.getInputStream()));
+			String result = null;
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					if (line.startsWith(RESULT)) {
+						result = line.substring(RESULT.length());
+					} else {
+						System.out.println(line);
+					}
+				}
+			} finally {
+				in.close();
+			}
+			if (process.waitFor() != 0 || result == null) {
+				throw new IllegalStateException("Fork of " + name
+						+ " failed");
+			}
+			String[] values = result.split(" ");
+			nsPerOp[f] = Double.parseDouble(values[0]);
+			bytesPerOp += Double.parseDouble(values[1]) / forks;
+		}
+
+		double mean = 0;
+		for (double t : nsPerOp) {
+			mean += t / forks;
+		}
+		double variance = 0;
+		for (double t : nsPerOp) {
+			variance += (t - mean) * (t - mean) / forks;
+		}
+		System.out.println(String.format("%-36s %12.2f %10.2f %10.1f", name,
+				mean, Math.sqrt(variance), bytesPerOp));
+	}
+
+	private static List<Benchmark> benchmarks(int[] chainLengths)
+			throws Exception {
+		List<Benchmark> list = new ArrayList<>();
+		final Random random = new Random(1);
+		final byte[][] words = new byte[1024][];
+		final byte[][] digests = new byte[1024][];
+		final int[][] intDigests = new int[1024][];
+		final String[] hexWords = new String[1024];
+		for (int i = 0; i < words.length; i++) {
+			words[i] = Rainbow.getNextWord(random);
+			digests[i] = Rainbow.hash(words[i]);
+			intDigests[i] = new int[Sha1.DIGEST_INTS];
+			new Sha1().hash(Rainbow.toWord(words[i]), intDigests[i]);
+			hexWords[i] = Rainbow.toHexString(words[i]);
+		}
+
+		list.add(new Benchmark("hash (MessageDigest)") {
+			@Override
+			long run(int ops) throws Exception {
+				long x = 0;
+				for (int i = 0; i < ops; i++) {
+					x += Rainbow.hash(words[i & 1023])[0];
+				}
+				return x;
+			}
+		});
+		list.add(new Benchmark("Sha1.hash") {
+			@Override
+			long run(int ops) {
+				Sha1 sha1 = new Sha1();
+				int[] digest = new int[Sha1.DIGEST_INTS];
+				long x = 0;
+				for (int i = 0; i < ops; i++) {
+					sha1.hash(i, digest);
+					x += digest[0];
+				}
+				return x;
+			}
+		});
+		list.add(new Benchmark("Sha1Lanes.hash (per hash)") {
+			@Override
+			long run(int ops) {
+				Sha1Lanes lanes = new Sha1Lanes();
+				long x = 0;
+				for (int i = 0; i < ops; i += Sha1Lanes.LANES) {
+					for (int l = 0; l < Sha1Lanes.LANES; l++) {
+						lanes.words[l] = i + l;
+					}
+					lanes.hash();
+					x += lanes.digest[0][0];
+				}
+				return x;
+			}
+		});
+		list.add(new Benchmark("reduce") {
+			@Override
+			long run(int ops) {
+				long x = 0;
+				for (int i = 0; i < ops; i++) {
+					x += Rainbow.reduce(digests[i & 1023], i & 255)[0];
+				}
+				return x;
+			}
+		});
+		list.add(new Benchmark("reduce2") {
+			@Override
+			long run(int ops) {
+				long x = 0;
+				for (int i = 0; i < ops; i++) {
+					x += Rainbow.reduce2(digests[i & 1023], i & 255)[0];
+				}
+				return x;
+			}
+		});
+		list.add(new Benchmark("reduce3") {
+			@Override
+			long run(int ops) {
+				long x = 0;
+				for (int i = 0; i < ops; i++) {
+					x += Rainbow.reduce3(digests[i & 1023], i & 255)[0];
+				}
+				return x;
+			}
+		});
+		list.add(new Benchmark("Sha1.reduce") {
+			@Override
+			long run(int ops) {
+				long x = 0;
+				for (int i = 0; i < ops; i++) {
+					x += Sha1.reduce(intDigests[i & 1023], i & 255);
+				}
+				return x;
+			}
+		});
+		list.add(new Benchmark("toHexString(byte[])") {
+			@Override
+			long run(int ops) {
+				long x = 0;
+				for (int i = 0; i < ops; i++) {
+					x += Rainbow.toHexString(digests[i & 1023]).length();
+				}
+				return x;
+			}
+		});
+		list.add(new Benchmark("toByteArray") {
+			@Override
+			long run(int ops) {
+				long x = 0;
+				for (int i = 0; i < ops; i++) {
+					x += Rainbow.toByteArray(hexWords[i & 1023])[0];
+				}
+				return x;
+			}
+		});
+
+		for (final int length : chainLengths) {
+			list.add(new Benchmark("chain, Sha1, length " + length) {
+				@Override
+				long run(int ops) {
+					Sha1 sha1 = new Sha1();
+					int[] digest = new int[Sha1.DIGEST_INTS];
+					long x = 0;
+					for (int i = 0; i < ops; i++) {
+						int word = i;
+						for (int j = 0; j < length; j++) {
+							word = sha1.hashReduce(word, j, digest);
+						}
+						x += word;
+					}
+					return x;
+				}
+			});
+			list.add(new Benchmark("chain, Sha1Lanes, length " + length) {
+				@Override
+				long run(int ops) {
+					Sha1Lanes lanes = new Sha1Lanes();
+					long x = 0;
+					for (int i = 0; i < ops; i += Sha1Lanes.LANES) {
+						for (int l = 0; l < Sha1Lanes.LANES; l++) {
+							lanes.words[l] = i + l;
+						}
+						for (int j = 0; j < length; j++) {
+							lanes.hash();
+							lanes.reduce(j);
+						}
+						x += lanes.words[0];
+					}
+					return x;
+				}
+			});
+		}
+
+		// tables of random endpoints, probed with random keys that mostly
+		// miss, as in a crack
+		EndpointHashIndex hashIndex = new EndpointHashIndex(TABLE_SIZE);
+		long[] records = new long[TABLE_SIZE];
+		for (int i = 0; i < TABLE_SIZE; i++) {
+			long key = random.nextLong();
+			hashIndex.put(key, i);
+			records[i] = TableFile.record(key >>> (64 - TableFile.KEY_BITS),
+					i);
+		}
+		File tableFile = File.createTempFile("bench", ".bin");
+		tableFile.deleteOnExit();
+		TableFile.write(tableFile.getPath(), records.clone(), TABLE_SIZE, 0,
+				TABLE_SIZE, 0, 0, 0, 0, 0);
+		File compressedFile = File.createTempFile("bench", ".rbz");
+		compressedFile.deleteOnExit();
+		CompressedTable.write(compressedFile.getPath(), records, TABLE_SIZE,
+				32, 0, 0, 0, TABLE_SIZE, 0, 0, 0);
+		final long[] probes = new long[1 << 16];
+		for (int i = 0; i < probes.length; i++) {
+			probes[i] = random.nextLong();
+		}
+		TableFile mapped = TableFile.open(tableFile.getPath());
+		EndpointIndex[] indexes = { hashIndex, mapped,
+				CompressedTable.open(compressedFile.getPath()),
+				new FilteredIndex(mapped, 0.01) };
+		for (final EndpointIndex index : indexes) {
+			String name = "get, " + index.getClass().getSimpleName();
+			list.add(new Benchmark(name) {
+				@Override
+				long run(int ops) {
+					long x = 0;
+					for (int i = 0; i < ops; i++) {
+						x += index.get(probes[i & (probes.length - 1)]);
+					}
+					return x;
+				}
+			});
+		}
+		return list;
+	}
+
+	/**
+	 * @return the mean time and the bytes allocated per operation
+	 */
+	private static double[] measure(Benchmark b) throws Exception {
+		ThreadMXBean threads = (ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+
+		// double the operations until an iteration is long enough to scale
+		int ops = 1;
+		long time;
+		while ((time = time(b, ops)) < ITERATION_MS * 1000000 / 20
+				&& ops < 1 << 30) {
+			ops <<= 1;
+		}
+		ops = (int) Math.max(1, Math.min(Integer.MAX_VALUE, ops
+				* (ITERATION_MS * 1000000.0 / time)));
+
+		for (int i = 0; i < WARMUP; i++) {
+			time(b, ops);
+		}
+		double[] nsPerOp = new double[MEASURE];
+		long allocated = threads.getThreadAllocatedBytes(thread);
+		for (int i = 0; i < MEASURE; i++) {
+			nsPerOp[i] = time(b, ops) / (double) ops;
+		}
+		allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+
+		double mean = 0;
+		for (double t : nsPerOp) {
+			mean += t / MEASURE;
+		}
+		return new double[] { mean, allocated / ((double) ops * MEASURE) };
+	}
+
+	private static long time(Benchmark b, int ops) throws Exception {
+		long start = System.nanoTime();
+		sink += b.run(ops);
+		return System.nanoTime() - start;
+	}
+}
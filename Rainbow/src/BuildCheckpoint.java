@@ -0,0 +1,161 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Saved progress of a table build. Chains committed since the last checkpoint
+ * go to a new segment file, name.segN, and name.ckpt records the next chain
+ * to build, the merges so far, the number of segments and the word coverage
+ * bitmap. Every chain
+ * draws from its own generator seeded by its chain number, or starts from a
+ * word derived from its chain index, so the next chain number is the whole
+ * generator state.
+ *
+ * The checkpoint file is replaced with a rename only after its segment is
+ * written, so a crash at any point leaves the previous checkpoint usable.
+ */
+class BuildCheckpoint {
+
+	static final int		MAGIC	= 0x52424332;	// "RBC2"
+
+	private final String	name;
+	private final int[]		parameters;
+	private int				segments;
+	private long			merges;
+
+	/**
+	 * @param parameters
+	 *            table parameters that must match for a checkpoint to be
+	 *            resumed
+	 */
+	BuildCheckpoint(String name, int... parameters) {
+		this.name = name;
+		this.parameters = parameters;
+	}
+
+	private File checkpointFile() {
+		return new File(name + ".ckpt");
+	}
+
+	private File segmentFile(int segment) {
+		return new File(name + ".seg" + segment);
+	}
+
+	/**
+	 * Restores the coverage bitmap and the chains of a saved checkpoint.
+	 *
+	 * @return the number of the next chain to build, or 0 if there is no
+	 *         usable checkpoint
+	 */
+	int resume(WordBitmap words, EndpointHashIndex table) throws IOException {
+		File file = checkpointFile();
+		if (!file.exists()) {
+			return 0;
+		}
+		DataInputStream in = open(file);
+		int next;
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new IOException(file + " is not a build checkpoint");
+			}
+			for (int p : parameters) {
+				if (in.readInt() != p) {
+					System.out.println(file
+							+ " was saved with different parameters, ignored");
+					return 0;
+				}
+			}
+			next = in.readInt();
+			merges = in.readLong();
+			segments = in.readInt();
+			words.read(in);
+		} finally {
+			in.close();
+		}
+		for (int s = 0; s < segments; s++) {
+			in = open(segmentFile(s));
+			try {
+				int count = in.readInt();
+				for (int i = 0; i < count; i++) {
+					long key = in.readLong();
+					table.put(key, in.readInt());
+				}
+			} finally {
+				in.close();
+			}
+		}
+		System.out.println("Resumed " + name + " at chain " + next + " with "
+				+ table.size() + " chains");
+		return next;
+	}
+
+	/**
+	 * @return the merges counted before the checkpoint resumed, or 0
+	 */
+	long merges() {
+		return merges;
+	}
+
+	/**
+	 * Writes the chains committed since the last checkpoint as a new segment,
+	 * then the checkpoint itself.
+	 */
+	void save(long[] keys, int[] starts, int count, int next, long merges,
+			WordBitmap words) throws IOException {
+		DataOutputStream out = create(segmentFile(segments));
+		try {
+			out.writeInt(count);
+			for (int i = 0; i < count; i++) {
+				out.writeLong(keys[i]);
+				out.writeInt(starts[i]);
+			}
+		} finally {
+			out.close();
+		}
+
+		File temp = new File(name + ".ckpt.tmp");
+		out = create(temp);
+		try {
+			out.writeInt(MAGIC);
+			for (int p : parameters) {
+				out.writeInt(p);
+			}
+			out.writeInt(next);
+			out.writeLong(merges);
+			out.writeInt(segments + 1);
+			words.write(out);
+		} finally {
+			out.close();
+		}
+		Files.move(temp.toPath(), checkpointFile().toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		segments++;
+	}
+
+	/**
+	 * Removes the checkpoint and its segments once the table is written.
+	 */
+	void delete() {
+		checkpointFile().delete();
+		for (int s = 0; segmentFile(s).delete(); s++) {
+		}
+	}
+
+	private static DataInputStream open(File file) throws IOException {
+		return new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file), 1 << 16));
+	}
+
+	private static DataOutputStream create(File file) throws IOException {
+		return new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file), 1 << 16));
+	}
+}
@@ -0,0 +1,72 @@
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A batch of rainbow chains being walked for Rainbow.build() and
+ * Rainbow.buildStreamed(). prepare() numbers the chains of a batch and walk()
+ * walks the pending ones in parallel, after which the caller commits or
+ * retries them. Chain s of the batch started from starts[s], ended at
+ * ends[s] and covered the words in buffers[s].
+ */
+class ChainBatch {
+
+	final Random[]		rngs;
+	final int[]			starts;
+	final long[]		ends;
+	final int[][]		buffers;
+	// batch indices of the chains to walk, the first remaining of them
+	final int[]			pending;
+	int					remaining;
+
+	ChainBatch(int size, int chainLength) {
+		this.rngs = new Random[size];
+		this.starts = new int[size];
+		this.ends = new long[size];
+		this.buffers = new int[size][chainLength];
+		this.pending = new int[size];
+	}
+
+	/**
+	 * Sets up count chains of table t. With indexed starts they are the
+	 * chains numbered first on, and those whose start word is already covered
+	 * are left out. Otherwise chain s draws its start words from the stream
+	 * numbered seed + s.
+	 */
+	void prepare(int t, long first, int count, long seed, boolean indexed,
+			WordBitmap covered) {
+		remaining = 0;
+		for (int s = 0; s < count; s++) {
+			if (indexed) {
+				starts[s] = Rainbow.startWord(t, (int) first + s);
+				if (covered.contains(starts[s])) {
+					continue;
+				}
+			} else {
+				rngs[s] = new Random(Rainbow.chainSeed(seed + s));
+			}
+			pending[remaining++] = s;
+		}
+	}
+
+	/**
+	 * Sets up count chains that start from the words in startWords, to be
+	 * walked with indexed true since they need no random streams.
+	 */
+	void prepare(int[] startWords, int count) {
+		for (int s = 0; s < count; s++) {
+			starts[s] = startWords[s];
+			pending[s] = s;
+		}
+		remaining = count;
+	}
+
+	/**
+	 * Walks the pending chains.
+	 */
+	void walk(ForkJoinPool pool, boolean indexed, WordBitmap covered,
+			int offset) {
+		pool.invoke(new ChainTask(pending, 0, remaining, indexed ? null
+				: rngs, starts, ends, buffers, covered, offset));
+		Metrics.hashes.addAndGet((long) remaining * buffers[0].length);
+	}
+}
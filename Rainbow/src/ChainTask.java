@@ -0,0 +1,84 @@
+import java.util.Random;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fork-join task that walks a range of rainbow chains for Rainbow.build().
+ * Every chain draws its start words from its own Random, so the chains walked
+ * do not depend on how the range is split between threads. Without rngs the
+ * chains start from the words already in starts.
+ */
+class ChainTask extends RecursiveAction {
+
+	private static final long	serialVersionUID	= 1L;
+	private static final int	THRESHOLD			= 64;
+
+	private final int[]			slots;
+	private final int			lo;
+	private final int			hi;
+	private final Random[]		rngs;
+	private final int[]			starts;
+	private final long[]		ends;
+	private final int[][]		buffers;
+	// only read while the task runs; the caller updates it between rounds
+	private final WordBitmap	covered;
+	private final int			offset;
+
+	ChainTask(int[] slots, int lo, int hi, Random[] rngs, int[] starts,
+			long[] ends, int[][] buffers, WordBitmap covered, int offset) {
+		this.slots = slots;
+		this.lo = lo;
+		this.hi = hi;
+		this.rngs = rngs;
+		this.starts = starts;
+		this.ends = ends;
+		this.buffers = buffers;
+		this.covered = covered;
+		this.offset = offset;
+	}
+
+	@Override
+	protected void compute() {
+		if (hi - lo <= THRESHOLD) {
+			Sha1Lanes lanes = new Sha1Lanes();
+			for (int n = lo; n < hi; n += Sha1Lanes.LANES) {
+				walk(n, Math.min(hi, n + Sha1Lanes.LANES), lanes);
+			}
+			return;
+		}
+		int mid = (lo + hi) >>> 1;
+		invokeAll(new ChainTask(slots, lo, mid, rngs, starts, ends, buffers,
+				covered, offset), new ChainTask(slots, mid, hi, rngs, starts,
+				ends, buffers, covered, offset));
+	}
+
+	/**
+	 * Walks the chains of slots[from..to), at most one per lane, in lockstep.
+	 * Lanes past to - from compute chains that are thrown away.
+	 */
+	private void walk(int from, int to, Sha1Lanes lanes) {
+		int[] words = lanes.words;
+		for (int n = from; n < to; n++) {
+			int slot = slots[n];
+			if (rngs == null) {
+				words[n - from] = starts[slot];
+				continue;
+			}
+			int word;
+			do {
+				word = Rainbow.toWord(Rainbow.getNextWord(rngs[slot]));
+			} while (covered.contains(word));
+			words[n - from] = word;
+			starts[slot] = word;
+		}
+		for (int j = 0; j < Rainbow.CHAIN_LENGTH; j++) {
+			lanes.hash(); // w_j -> y_j
+			lanes.reduce(j + offset); // y_j -> w_j+1
+			for (int n = from; n < to; n++) {
+				buffers[slots[n]][j] = words[n - from];
+			}
+		}
+		for (int n = from; n < to; n++) {
+			ends[slots[n]] = lanes.key(n - from);
+		}
+	}
+}
@@ -0,0 +1,78 @@
+/**
+ * Checkpoint bits that reject most false alarms without regenerating the
+ * chain. Bit i of a chain's check bits is the low bit of the chain's word at
+ * POSITIONS[i], and the bits are kept above the 24 bit start word in the
+ * chain's index entry. A tail walk from position j reaches every checkpoint
+ * after j. A walk that only merged into the chain somewhere past a checkpoint
+ * disagrees with it half of the time.
+ */
+final class CheckBits {
+
+	static final int			COUNT		= 6;
+	static final int			SHIFT		= 24;
+
+	// the checkpoints, spread evenly along the chain
+	static final int[]			POSITIONS	= new int[COUNT];
+	// bit of each position, or -1
+	private static final int[]	BIT			= new int[Rainbow.CHAIN_LENGTH + 1];
+	// bits that a tail walk from each position gets to check
+	private static final int[]	AFTER		= new int[Rainbow.CHAIN_LENGTH + 1];
+
+	static {
+		java.util.Arrays.fill(BIT, -1);
+		for (int i = 0; i < COUNT; i++) {
+			POSITIONS[i] = Rainbow.CHAIN_LENGTH * (i + 1) / (COUNT + 1);
+			BIT[POSITIONS[i]] = i;
+		}
+		for (int j = 0; j <= Rainbow.CHAIN_LENGTH; j++) {
+			for (int i = 0; i < COUNT; i++) {
+				if (POSITIONS[i] > j) {
+					AFTER[j] |= 1 << i;
+				}
+			}
+		}
+	}
+
+	private CheckBits() {
+	}
+
+	/**
+	 * @param words
+	 *            the chain's words, words[j] being the word at position j + 1
+	 * @return the index entry of the chain
+	 */
+	static int entry(int start, int[] words) {
+		int bits = 0;
+		for (int i = 0; i < COUNT; i++) {
+			bits |= (words[POSITIONS[i] - 1] & 1) << i;
+		}
+		return (start & 0xffffff) | (bits << SHIFT);
+	}
+
+	/**
+	 * @return the bit a walk records for the word at position, or -1 if the
+	 *         position is not a checkpoint
+	 */
+	static int bit(int position) {
+		return BIT[position];
+	}
+
+	/**
+	 * @return false if the bits a tail walk from position recorded rule out
+	 *         the chain of entry
+	 */
+	static boolean match(int entry, int walkBits, int position) {
+		return (((entry >>> SHIFT) ^ walkBits) & AFTER[position]) == 0;
+	}
+
+	/**
+	 * @return the bits of the checkpoints at position or after it
+	 */
+	static int from(int position) {
+		return AFTER[position - 1];
+	}
+
+	static int start(int entry) {
+		return entry & 0xffffff;
+	}
+}
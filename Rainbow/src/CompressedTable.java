@@ -0,0 +1,357 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Compressed rainbow table. Endpoints are truncated to keyBits bits and
+ * sorted, and the gaps between neighbours are Rice coded. Index entries,
+ * start words with their check bits, are bit-packed in a separate array in
+ * the same order. A table of chain indices instead of start words packs only
+ * indexBits bits of each. Sorted SHA-1 prefixes are close to uniform, so a
+ * gap takes about riceBits + 2 bits, well below a stored endpoint.
+ *
+ * Endpoints are split into buckets on their top bits, about BUCKET_ENTRIES
+ * chains per bucket. An in-memory index holds the bit position where each
+ * bucket starts, so a lookup seeks straight to its bucket and decodes only
+ * that bucket. The index is rebuilt from the code stream when the table is
+ * loaded. The codes and entries are decoded straight from the read-only
+ * mapping of the file, shared through the page cache like a TableFile, so
+ * only the bucket index is on the heap.
+ */
+class CompressedTable implements EndpointIndex {
+
+	static final int			MAGIC			= 0x52425a32;	// "RBZ2"
+	static final int			HEADER_BYTES	= 52;
+	static final int			MAX_KEY_BITS	= 40;
+	static final int			BUCKET_ENTRIES	= 32;
+
+	final int					chainLength;
+	final int					tableLength;
+	final int					seed;
+	final int					reduceVariant;
+	final int					reduceOffset;
+	final int					checkBits;
+	// bits of the chain indices in place of start words, or 0
+	final int					indexBits;
+
+	private final int			count;
+	private final int			keyBits;
+	private final int			riceBits;
+	private final int			bucketBits;
+	private final int			startBits;
+	private final LongBuffer	codes;
+	private final LongBuffer	startWords;
+
+	// first entry, bit position and preceding endpoint of every bucket
+	private final int[]			first;
+	private final long[]		position;
+	private final long[]		base;
+
+	private CompressedTable(ByteBuffer header, LongBuffer codes,
+			LongBuffer startWords) {
+		this.chainLength = header.getInt(4);
+		this.tableLength = header.getInt(8);
+		this.seed = header.getInt(12);
+		this.reduceVariant = header.getInt(16);
+		this.reduceOffset = header.getInt(20);
+		this.count = header.getInt(24);
+		this.keyBits = header.getInt(28);
+		this.riceBits = header.getInt(32);
+		this.bucketBits = header.getInt(36);
+		this.startBits = header.getInt(40);
+		this.indexBits = header.getInt(48);
+		this.checkBits = startBits - wordBits(indexBits);
+		this.codes = codes;
+		this.startWords = startWords;
+
+		int buckets = 1 << bucketBits;
+		first = new int[buckets + 1];
+		position = new long[buckets + 1];
+		base = new long[buckets + 1];
+		int bucket = 0;
+		long pos = 0;
+		long key = 0;
+		for (int e = 0; e < count; e++) {
+			long next = pos;
+			int q = 0;
+			long window;
+			while ((window = peek(codes, next)) == 0) {
+				q += 64;
+				next += 64;
+			}
+			q += Long.numberOfLeadingZeros(window);
+			next += Long.numberOfLeadingZeros(window) + 1;
+			long gap = ((long) q << riceBits) | read(codes, next, riceBits);
+			next += riceBits;
+			int keyBucket = bucketOf(key + gap);
+			while (bucket <= keyBucket) {
+				first[bucket] = e;
+				position[bucket] = pos;
+				base[bucket] = key;
+				bucket++;
+			}
+			key += gap;
+			pos = next;
+		}
+		while (bucket <= buckets) {
+			first[bucket] = count;
+			position[bucket] = pos;
+			base[bucket] = key;
+			bucket++;
+		}
+	}
+
+	// bits of the start word or chain index in an entry
+	private static int wordBits(int indexBits) {
+		return indexBits == 0 ? 24 : indexBits;
+	}
+
+	private int bucketOf(long key) {
+		return (int) (key >>> (keyBits - bucketBits));
+	}
+
+	/**
+	 * Compresses the first count records, packed as by TableFile.record()
+	 * with checkBits check bits, into a table that keeps keyBits bits of each
+	 * endpoint and the whole index entry. If indexBits is not 0 the records
+	 * hold chain indices below 2^indexBits.
+	 */
+	static void write(String filename, long[] records, int count,
+			int keyBits, int checkBits, int indexBits, int chainLength,
+			int tableLength, int seed, int reduceVariant, int reduceOffset)
+			throws IOException {
+		if (keyBits > MAX_KEY_BITS - checkBits) {
+			throw new IllegalArgumentException("keyBits > "
+					+ (MAX_KEY_BITS - checkBits));
+		}
+		int wordBits = wordBits(indexBits);
+		int startBits = wordBits + checkBits;
+		long[] sorted = new long[count];
+		for (int i = 0; i < count; i++) {
+			long field = records[i] >>> 24;
+			long key = field >>> (TableFile.KEY_BITS - keyBits);
+			long check = field & ((1L << checkBits) - 1);
+			long entry = (check << wordBits)
+					| (records[i] & ((1L << wordBits) - 1));
+			sorted[i] = ((key << startBits) | entry) ^ Long.MIN_VALUE;
+		}
+		Arrays.sort(sorted);
+
+		// Rice parameter for the mean gap, bucket count for the bucket size
+		int riceBits = count == 0 ? 0 : Math.max(0,
+				63 - Long.numberOfLeadingZeros((1L << keyBits) / count));
+		int bucketBits = Math.min(keyBits, Math.max(0,
+				32 - Integer.numberOfLeadingZeros(count / BUCKET_ENTRIES)));
+
+		BitWriter codes = new BitWriter();
+		BitWriter starts = new BitWriter();
+		long previous = 0;
+		for (int i = 0; i < count; i++) {
+			long record = sorted[i] ^ Long.MIN_VALUE;
+			long key = record >>> startBits;
+			long gap = key - previous;
+			codes.skip(gap >>> riceBits);
+			codes.write(1, 1);
+			codes.write(gap, riceBits);
+			starts.write(record, startBits);
+			previous = key;
+		}
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(filename), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(chainLength);
+			out.writeInt(tableLength);
+			out.writeInt(seed);
+			out.writeInt(reduceVariant);
+			out.writeInt(reduceOffset);
+			out.writeInt(count);
+			out.writeInt(keyBits);
+			out.writeInt(riceBits);
+			out.writeInt(bucketBits);
+			out.writeInt(startBits);
+			out.writeInt(codes.words());
+			out.writeInt(indexBits);
+			for (long w : codes.toArray()) {
+				out.writeLong(w);
+			}
+			for (long w : starts.toArray()) {
+				out.writeLong(w);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	static CompressedTable open(String filename) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(filename, "r");
+		try {
+			ByteBuffer buffer = file.getChannel().map(
+					FileChannel.MapMode.READ_ONLY, 0, file.length());
+			ByteBuffer header = buffer.duplicate();
+			if (header.getInt(0) != MAGIC) {
+				throw new IOException(filename
+						+ " is not a compressed rainbow table file");
+			}
+			int codeWords = header.getInt(44);
+			int startWordCount = (int) ((header.getInt(24)
+					* (long) header.getInt(40) + 63) >>> 6);
+			buffer.position(HEADER_BYTES);
+			LongBuffer codes = buffer.slice().asLongBuffer();
+			codes.limit(codeWords);
+			buffer.position(HEADER_BYTES + codeWords * 8);
+			LongBuffer startWords = buffer.slice().asLongBuffer();
+			startWords.limit(startWordCount);
+			// the mapping stays valid after the file is closed
+			return new CompressedTable(header, codes, startWords);
+		} finally {
+			file.close();
+		}
+	}
+
+	@Override
+	public int get(long endpoint) {
+		long key = endpoint >>> (64 - keyBits);
+		int bucket = bucketOf(key);
+		int end = first[bucket + 1];
+		long pos = position[bucket];
+		long current = base[bucket];
+		for (int e = first[bucket]; e < end; e++) {
+			long window;
+			long q = 0;
+			while ((window = peek(codes, pos)) == 0) {
+				q += 64;
+				pos += 64;
+			}
+			int zeros = Long.numberOfLeadingZeros(window);
+			pos += zeros + 1;
+			current += ((q + zeros) << riceBits) | read(codes, pos, riceBits);
+			pos += riceBits;
+			if (current == key) {
+				int entry = (int) read(startWords, (long) e * startBits,
+						startBits);
+				int wordBits = startBits - checkBits;
+				return (entry & ((1 << wordBits) - 1))
+						| ((entry >>> wordBits) << CheckBits.SHIFT);
+			}
+			if (current > key) {
+				break;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public void getAll(long[] keys, int count, int[] starts) {
+		for (int i = 0; i < count; i++) {
+			starts[i] = get(keys[i]);
+		}
+	}
+
+	@Override
+	public int keyBits() {
+		return keyBits;
+	}
+
+	@Override
+	public long[] keys() {
+		long[] keys = new long[count];
+		long pos = 0;
+		long key = 0;
+		for (int e = 0; e < count; e++) {
+			long window;
+			long q = 0;
+			while ((window = peek(codes, pos)) == 0) {
+				q += 64;
+				pos += 64;
+			}
+			int zeros = Long.numberOfLeadingZeros(window);
+			pos += zeros + 1;
+			key += ((q + zeros) << riceBits) | read(codes, pos, riceBits);
+			pos += riceBits;
+			keys[e] = key << (64 - keyBits);
+		}
+		return keys;
+	}
+
+	@Override
+	public int size() {
+		return count;
+	}
+
+	@Override
+	public long bytes() {
+		return (codes.limit() + startWords.limit()) * 8L + first.length * 4L
+				+ (position.length + base.length) * 8L;
+	}
+
+	// the 64 bits starting at bit pos, most significant bit first
+	private static long peek(LongBuffer words, long pos) {
+		int w = (int) (pos >>> 6);
+		int off = (int) (pos & 63);
+		if (w >= words.limit()) {
+			return 0;
+		}
+		long v = words.get(w) << off;
+		if (off != 0 && w + 1 < words.limit()) {
+			v |= words.get(w + 1) >>> (64 - off);
+		}
+		return v;
+	}
+
+	private static long read(LongBuffer words, long pos, int n) {
+		return n == 0 ? 0 : peek(words, pos) >>> (64 - n);
+	}
+
+	/**
+	 * Appends bit fields to a growing long[], most significant bit first.
+	 */
+	private static class BitWriter {
+
+		private long[]	words	= new long[16];
+		private long	pos;
+
+		void write(long value, int n) {
+			if (n == 0) {
+				return;
+			}
+			int w = (int) (pos >>> 6);
+			int off = (int) (pos & 63);
+			ensure(w + 2);
+			value <<= 64 - n;
+			words[w] |= value >>> off;
+			if (off + n > 64) {
+				words[w + 1] |= value << (64 - off);
+			}
+			pos += n;
+		}
+
+		// zero bits are already in place
+		void skip(long n) {
+			pos += n;
+			ensure((int) (pos >>> 6) + 2);
+		}
+
+		private void ensure(int length) {
+			if (length > words.length) {
+				words = Arrays.copyOf(words, Math.max(length,
+						words.length * 2));
+			}
+		}
+
+		int words() {
+			return (int) ((pos + 63) >>> 6);
+		}
+
+		long[] toArray() {
+			return Arrays.copyOf(words, words());
+		}
+	}
+}
@@ -0,0 +1,43 @@
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fork-join task that searches a range of target hashes for Rainbow.crack().
+ * The preimage found for target i, or -1, is stored in results[i] so the
+ * caller can write them out in input order.
+ */
+class CrackTask extends RecursiveAction {
+
+	private static final long		serialVersionUID	= 1L;
+	private static final int		THRESHOLD			= 4;
+
+	private final Cracker			cracker;
+	private final List<int[]>		targets;
+	private final int[]				results;
+	private final int				lo;
+	private final int				hi;
+
+	CrackTask(Cracker cracker, List<int[]> targets, int[] results, int lo,
+			int hi) {
+		this.cracker = cracker;
+		this.targets = targets;
+		this.results = results;
+		this.lo = lo;
+		this.hi = hi;
+	}
+
+	@Override
+	protected void compute() {
+		if (hi - lo <= THRESHOLD) {
+			for (int i = lo; i < hi; i++) {
+				long start = System.nanoTime();
+				results[i] = cracker.search(targets.get(i));
+				Metrics.latency(System.nanoTime() - start);
+			}
+			return;
+		}
+		int mid = (lo + hi) >>> 1;
+		invokeAll(new CrackTask(cracker, targets, results, lo, mid),
+				new CrackTask(cracker, targets, results, mid, hi));
+	}
+}
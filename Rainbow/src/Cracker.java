@@ -0,0 +1,21 @@
+/**
+ * A loaded table that Rainbow.crack() can search for preimages.
+ */
+interface Cracker {
+
+	/**
+	 * Returns the 24 bit word hashing to target, or -1 if the table does not
+	 * cover it. Called from several threads at once.
+	 */
+	int search(int[] target);
+
+	/**
+	 * @return the number of chains stored
+	 */
+	int size();
+
+	/**
+	 * @return the bytes the stored chains take up
+	 */
+	long bytes();
+}
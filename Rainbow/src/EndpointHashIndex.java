@@ -0,0 +1,145 @@
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash table from endpoints to start words. Endpoints are
+ * keyed on the first 64 bits of their digest and start words are kept in an
+ * int[], so neither lookups nor inserts allocate.
+ */
+class EndpointHashIndex implements EndpointIndex {
+
+	private static final int	EMPTY		= -1;
+	private static final double	MAX_LOAD	= 0.75;
+
+	private long[]				keys;
+	private int[]				starts;
+	private int					mask;
+	private int					size;
+
+	EndpointHashIndex(int expected) {
+		int capacity = Integer.highestOneBit((int) (expected / MAX_LOAD)) << 1;
+		allocate(Math.max(capacity, 16));
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		starts = new int[capacity];
+		Arrays.fill(starts, EMPTY);
+		mask = capacity - 1;
+		size = 0;
+	}
+
+	static long key(int[] endpoint) {
+		return ((long) endpoint[0] << 32) | (endpoint[1] & 0xffffffffL);
+	}
+
+	private int slot(long key) {
+		// the key is already a slice of a SHA-1 digest, so folding is enough
+		return (int) (key ^ (key >>> 32)) & mask;
+	}
+
+	/**
+	 * Adds a chain unless one with the same endpoint is already present. The
+	 * start word is kept with any bits the caller stores above it, and must
+	 * not be negative.
+	 * 
+	 * @return true if the chain was added
+	 */
+	boolean put(long key, int start) {
+		int slot = slot(key);
+		while (starts[slot] != EMPTY) {
+			if (keys[slot] == key) {
+				return false;
+			}
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = key;
+		starts[slot] = start;
+		if (++size > keys.length * MAX_LOAD) {
+			grow();
+		}
+		return true;
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		int[] oldStarts = starts;
+		allocate(oldKeys.length << 1);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldStarts[i] != EMPTY) {
+				put(oldKeys[i], oldStarts[i]);
+			}
+		}
+	}
+
+	boolean containsKey(long key) {
+		return get(key) != EMPTY;
+	}
+
+	@Override
+	public int get(long key) {
+		int slot = slot(key);
+		while (starts[slot] != EMPTY) {
+			if (keys[slot] == key) {
+				return starts[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		return EMPTY;
+	}
+
+	@Override
+	public void getAll(long[] keys, int count, int[] starts) {
+		for (int i = 0; i < count; i++) {
+			starts[i] = get(keys[i]);
+		}
+	}
+
+	@Override
+	public int keyBits() {
+		return 64;
+	}
+
+	@Override
+	public long[] keys() {
+		long[] all = new long[size];
+		int n = 0;
+		for (int slot = 0; slot < keys.length; slot++) {
+			if (starts[slot] != EMPTY) {
+				all[n++] = keys[slot];
+			}
+		}
+		return all;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public long bytes() {
+		return keys.length * 8L + starts.length * 4L;
+	}
+
+	void clear() {
+		allocate(16);
+	}
+
+	// slot iteration, used to write the table out and to verify it
+
+	int capacity() {
+		return keys.length;
+	}
+
+	boolean isUsed(int slot) {
+		return starts[slot] != EMPTY;
+	}
+
+	long keyAt(int slot) {
+		return keys[slot];
+	}
+
+	int startAt(int slot) {
+		return starts[slot];
+	}
+}
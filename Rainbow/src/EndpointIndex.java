@@ -0,0 +1,33 @@
+/**
+ * Maps chain endpoints to the start words of the chains ending there.
+ */
+interface EndpointIndex {
+
+	/**
+	 * Returns the entry of the chain whose endpoint starts with the 64 bit
+	 * key, or -1 if no chain ends there. The entry is the chain's 24 bit start
+	 * word with its check bits above it, see CheckBits.
+	 */
+	int get(long key);
+
+	/**
+	 * Looks up the first count keys, leaving the start word or -1 for keys[i]
+	 * in starts[i].
+	 */
+	void getAll(long[] keys, int count, int[] starts);
+
+	/**
+	 * Number of leading key bits the index compares.
+	 */
+	int keyBits();
+
+	/**
+	 * Returns every stored endpoint, with the bits after the first keyBits()
+	 * cleared.
+	 */
+	long[] keys();
+
+	int size();
+
+	long bytes();
+}
@@ -0,0 +1,102 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Parallel exhaustive table: every word with the top 40 bits of its digest,
+ * sorted by digest, in the TableFile format. The word space is cut into runs
+ * of runWords words. Each run is hashed, sorted and written out by one task,
+ * and the runs are then merged into the table. Memory is one run per thread
+ * and a read buffer per run during the merge, however large the word space.
+ */
+class ExhaustiveBuild {
+
+	private final String		filename;
+	private final int			runWords;
+
+	ExhaustiveBuild(String filename, int runWords) {
+		this.filename = filename;
+		this.runWords = runWords;
+	}
+
+	private File runFile(int run) {
+		return new File(filename + ".run" + run);
+	}
+
+	void build(ForkJoinPool pool) throws IOException {
+		long startTime = System.currentTimeMillis();
+		int runs = (WordBitmap.WORD_SPACE + runWords - 1) / runWords;
+		pool.invoke(new RunTask(0, runs));
+		long sortedTime = System.currentTimeMillis();
+
+		List<File> files = new ArrayList<>();
+		for (int r = 0; r < runs; r++) {
+			files.add(runFile(r));
+		}
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(filename), ExternalSort.BUFFER_BYTES));
+		try {
+			TableFile.writeHeader(out, WordBitmap.WORD_SPACE, 0,
+					WordBitmap.WORD_SPACE, 0, 0, 0, 0, 0);
+			ExternalSort.merge(files, out, 0, Long.MAX_VALUE);
+		} finally {
+			out.close();
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		System.out.println("Exhaustive table built: " + runs + " runs sorted in "
+				+ (sortedTime - startTime) + " ms, merged in "
+				+ (System.currentTimeMillis() - sortedTime) + " ms");
+	}
+
+	/**
+	 * Hashes, sorts and writes the runs lo..hi.
+	 */
+	private class RunTask extends RecursiveAction {
+
+		private static final long	serialVersionUID	= 1L;
+
+		private final int			lo;
+		private final int			hi;
+
+		RunTask(int lo, int hi) {
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		protected void compute() {
+			if (hi - lo > 1) {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new RunTask(lo, mid), new RunTask(mid, hi));
+				return;
+			}
+			int first = lo * runWords;
+			int count = Math.min(runWords, WordBitmap.WORD_SPACE - first);
+			long[] records = new long[count];
+			Sha1Lanes lanes = new Sha1Lanes();
+			for (int n = 0; n < count; n += Sha1Lanes.LANES) {
+				for (int l = 0; l < Sha1Lanes.LANES; l++) {
+					lanes.words[l] = first + n + l;
+				}
+				lanes.hash();
+				for (int l = 0; l < Sha1Lanes.LANES && n + l < count; l++) {
+					long key = lanes.key(l) >>> (64 - TableFile.KEY_BITS);
+					records[n + l] = TableFile.record(key, first + n + l);
+				}
+			}
+			try {
+				ExternalSort.writeRun(runFile(lo), records, count);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,131 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * External sort of long records in unsigned order, for tables too large to
+ * sort in memory. Callers sort bounded batches into run files with
+ * writeRun(), then merge() streams the runs into one sorted output, holding
+ * only a read buffer per run.
+ */
+class ExternalSort {
+
+	static final int	BUFFER_BYTES	= 1 << 16;
+
+	private ExternalSort() {
+	}
+
+	/**
+	 * Sorts the first count records in place and writes them to file.
+	 */
+	static void writeRun(File file, long[] records, int count)
+			throws IOException {
+		// flip the sign bit so the signed sort gives unsigned order
+		for (int i = 0; i < count; i++) {
+			records[i] ^= Long.MIN_VALUE;
+		}
+		Arrays.sort(records, 0, count);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file), BUFFER_BYTES));
+		try {
+			for (int i = 0; i < count; i++) {
+				out.writeLong(records[i] ^ Long.MIN_VALUE);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Merges sorted runs into out, stopping after limit records. If keyShift
+	 * is positive, only one record of every run of records with the same
+	 * record >>> keyShift is kept, the one from the earliest run winning.
+	 *
+	 * @return the number of records written
+	 */
+	static long merge(List<File> runs, DataOutputStream out, int keyShift,
+			long limit) throws IOException {
+		PriorityQueue<Run> heads = new PriorityQueue<>(Math.max(1,
+				runs.size()));
+		try {
+			for (int r = 0; r < runs.size(); r++) {
+				Run run = new Run(runs.get(r), r, keyShift);
+				if (run.next()) {
+					heads.add(run);
+				} else {
+					run.close();
+				}
+			}
+			long written = 0;
+			boolean first = true;
+			long lastKey = 0;
+			while (!heads.isEmpty() && written < limit) {
+				Run run = heads.poll();
+				long record = run.head;
+				long key = keyShift <= 0 ? 0 : record >>> keyShift;
+				if (keyShift <= 0 || first || key != lastKey) {
+					out.writeLong(record);
+					written++;
+					first = false;
+					lastKey = key;
+				}
+				if (run.next()) {
+					heads.add(run);
+				} else {
+					run.close();
+				}
+			}
+			return written;
+		} finally {
+			for (Run run : heads) {
+				run.close();
+			}
+		}
+	}
+
+	private static class Run implements Comparable<Run> {
+
+		private final DataInputStream	in;
+		private final int				order;
+		private final int				keyShift;
+		long							head;
+
+		Run(File file, int order, int keyShift) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file), BUFFER_BYTES));
+			this.order = order;
+			this.keyShift = keyShift;
+		}
+
+		boolean next() throws IOException {
+			try {
+				head = in.readLong();
+				return true;
+			} catch (EOFException e) {
+				return false;
+			}
+		}
+
+		void close() throws IOException {
+			in.close();
+		}
+
+		// by key alone if there is one, so equal keys are taken in run order
+		@Override
+		public int compareTo(Run other) {
+			int c = keyShift > 0 ? Long.compare(head >>> keyShift,
+					other.head >>> keyShift) : Long.compare(head
+					^ Long.MIN_VALUE, other.head ^ Long.MIN_VALUE);
+			return c != 0 ? c : Integer.compare(order, other.order);
+		}
+	}
+}
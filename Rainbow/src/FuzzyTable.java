@@ -0,0 +1,207 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fuzzy rainbow table, as an alternative to the rainbow table. A chain is
+ * SEGMENTS segments, and segment s reduces with Sha1.reduce() at iteration s
+ * until it reaches a digest whose top DP_BITS bits are zero, where the next
+ * segment begins. Within a segment chains merge as in a Hellman table, but
+ * only when they meet in the same segment, as in a rainbow table, and merges
+ * are still caught at the endpoints when the table is built.
+ *
+ * A lookup guesses the segment of the target, walks to the end of that
+ * segment and through the rest, and probes the endpoint. With segments of
+ * 2^DP_BITS points a lookup costs about SEGMENTS^2 / 2 segments instead of
+ * the square of the whole chain length.
+ */
+class FuzzyTable implements Cracker {
+
+	// expected segment length is 2^DP_BITS
+	static final int					DP_BITS			= 1;
+	static final int					SEGMENTS		= 111;
+	// segments of more points than this are assumed to cycle and the chain
+	// dropped
+	static final int					MAX_SEGMENT		= 16 << DP_BITS;
+	// spend the same number of points as the rainbow table
+	static final int					TABLE_CHAINS	= (int) (Math.pow(2,
+																23.4) / (SEGMENTS << DP_BITS));
+
+	private static final int			BUILD_BATCH		= 4096;
+	// chain i starts from Rainbow.startWord(START_KEY, i)
+	private static final int			START_KEY		= -1;
+
+	private final EndpointHashIndex		index			= new EndpointHashIndex(
+																TABLE_CHAINS);
+	private final AtomicInteger			falseAlarms		= new AtomicInteger();
+
+	void build(ForkJoinPool pool) {
+		long[] ends = new long[BUILD_BATCH];
+		int merges = 0;
+		int cycles = 0;
+		int base = 0;
+		// chains are walked in parallel a batch at a time, then committed in
+		// chain order so the table does not depend on the number of threads
+		while (index.size() < TABLE_CHAINS && base < 4 * TABLE_CHAINS) {
+			int count = Math.min(BUILD_BATCH, 4 * TABLE_CHAINS - base);
+			pool.invoke(new WalkTask(ends, base, 0, count));
+			for (int i = 0; i < count && index.size() < TABLE_CHAINS; i++) {
+				int start = Rainbow.startWord(START_KEY, base + i);
+				if (ends[i] == 0) {
+					cycles++;
+				} else if (!index.put(ends[i], start)) {
+					merges++;
+				}
+			}
+			base += count;
+		}
+		Metrics.chains.addAndGet(index.size());
+		Metrics.merges.addAndGet(merges);
+		System.out.println("Fuzzy rainbow table: " + index.size()
+				+ " chains of " + SEGMENTS + " segments, " + merges
+				+ " merges, " + cycles + " cycles dropped");
+	}
+
+	/**
+	 * Walks on from digest, a point of segment, to the end of the chain,
+	 * leaving the endpoint in digest.
+	 *
+	 * @return the number of hashes, or -1 if a segment did not end within
+	 *         MAX_SEGMENT points
+	 */
+	private static int finish(int segment, int[] digest, Sha1 sha1) {
+		int hashes = 0;
+		for (int s = segment; s < SEGMENTS; s++) {
+			// digest is the first point of the segment
+			int i = 0;
+			while (!isDistinguished(digest)) {
+				if (++i == MAX_SEGMENT) {
+					return -1;
+				}
+				sha1.hash(Sha1.reduce(digest, s), digest);
+			}
+			hashes += i;
+			if (s + 1 < SEGMENTS) {
+				sha1.hash(Sha1.reduce(digest, s + 1), digest);
+				hashes++;
+			}
+		}
+		return hashes;
+	}
+
+	private static boolean isDistinguished(int[] digest) {
+		return (digest[0] >>> (32 - DP_BITS)) == 0;
+	}
+
+	@Override
+	public int search(int[] target) {
+		Sha1 sha1 = new Sha1();
+		int[] digest = new int[Sha1.DIGEST_INTS];
+		// the short walks from the last segments come first
+		for (int segment = SEGMENTS - 1; segment >= 0; segment--) {
+			System.arraycopy(target, 0, digest, 0, digest.length);
+			int hashes = finish(segment, digest, sha1);
+			Metrics.hashes.addAndGet(Math.max(0, hashes));
+			Metrics.probes.incrementAndGet();
+			int start = hashes < 0 ? -1 : index.get(EndpointHashIndex
+					.key(digest));
+			if (start < 0) {
+				continue;
+			}
+			Metrics.endpointHits.incrementAndGet();
+			int word = getPreimage(start, target, segment, sha1, digest);
+			if (word >= 0) {
+				return word;
+			}
+			falseAlarms.incrementAndGet();
+			Metrics.falseAlarms.incrementAndGet();
+		}
+		return -1;
+	}
+
+	// regenerates the chain from word up to the end of segment last
+	private static int getPreimage(int word, int[] target, int last,
+			Sha1 sha1, int[] digest) {
+		int point = 0;
+		for (int s = 0; s <= last; s++) {
+			for (int i = 0;; i++) {
+				sha1.hash(word, digest);
+				if (Arrays.equals(digest, target)) {
+					Metrics.hashes.addAndGet(point + 1);
+					Metrics.found(point);
+					return word;
+				}
+				point++;
+				if (isDistinguished(digest)) {
+					break;
+				}
+				if (i + 1 == MAX_SEGMENT) {
+					Metrics.hashes.addAndGet(point);
+					return -1;
+				}
+				word = Sha1.reduce(digest, s);
+			}
+			word = Sha1.reduce(digest, s + 1);
+		}
+		Metrics.hashes.addAndGet(point);
+		return -1;
+	}
+
+	int falseAlarms() {
+		return falseAlarms.get();
+	}
+
+	@Override
+	public int size() {
+		return index.size();
+	}
+
+	// as the chains would be stored in a TableFile, for comparison
+	@Override
+	public long bytes() {
+		return (long) size() * TableFile.RECORD_BYTES;
+	}
+
+	/**
+	 * Walks the chains base + lo..base + hi, leaving their endpoints in ends,
+	 * or 0 for chains that cycled.
+	 */
+	private static class WalkTask extends RecursiveAction {
+
+		private static final long	serialVersionUID	= 1L;
+		private static final int	THRESHOLD			= 64;
+
+		private final long[]		ends;
+		private final int			base;
+		private final int			lo;
+		private final int			hi;
+
+		WalkTask(long[] ends, int base, int lo, int hi) {
+			this.ends = ends;
+			this.base = base;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		protected void compute() {
+			if (hi - lo > THRESHOLD) {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new WalkTask(ends, base, lo, mid), new WalkTask(ends,
+						base, mid, hi));
+				return;
+			}
+			Sha1 sha1 = new Sha1();
+			int[] digest = new int[Sha1.DIGEST_INTS];
+			long hashes = 0;
+			for (int i = lo; i < hi; i++) {
+				sha1.hash(Rainbow.startWord(START_KEY, base + i), digest);
+				int n = finish(0, digest, sha1);
+				ends[i] = n < 0 ? 0 : EndpointHashIndex.key(digest);
+				hashes += 1 + Math.max(0, n);
+			}
+			Metrics.hashes.addAndGet(hashes);
+		}
+	}
+}
@@ -0,0 +1,175 @@
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Classic Hellman tables with distinguished points, as an alternative to the
+ * rainbow table. Every table uses a single reduce function, Sha1.reduce() with
+ * the table number as iteration, and a chain ends at the first digest whose
+ * top DP_BITS bits are zero. Chains that merge reach the same endpoint, so
+ * merges are caught when the table is built, and a lookup in a table is one
+ * walk to the next distinguished point followed by one probe.
+ */
+class HellmanTable implements Cracker {
+
+	// expected chain length is 2^DP_BITS
+	static final int					DP_BITS			= 7;
+	// chains longer than this are assumed to cycle and are dropped
+	static final int					MAX_LENGTH		= 16 << DP_BITS;
+	// matrix stopping rule: chains * length^2 is about the word space
+	static final int					TABLE_CHAINS	= WordBitmap.WORD_SPACE
+																>>> (2 * DP_BITS);
+	// spend the same number of points as the rainbow table
+	static final int					TABLES			= (int) (Math.pow(2,
+																23.4) / (TABLE_CHAINS << DP_BITS));
+
+	private final EndpointHashIndex[]	tables			= new EndpointHashIndex[TABLES];
+	private final AtomicInteger			merges			= new AtomicInteger();
+	private final AtomicInteger			cycles			= new AtomicInteger();
+	private final AtomicInteger			falseAlarms		= new AtomicInteger();
+
+	void build(ForkJoinPool pool) {
+		pool.invoke(new BuildTask(0, TABLES));
+		System.out.println("Hellman tables: " + TABLES + " x " + TABLE_CHAINS
+				+ " chains, " + merges.get() + " merges, " + cycles.get()
+				+ " cycles dropped");
+	}
+
+	private void buildTable(int table) {
+		EndpointHashIndex index = new EndpointHashIndex(TABLE_CHAINS);
+		// negative chain numbers keep these streams apart from build()'s
+		Random r = new Random(Rainbow.chainSeed(-1 - table));
+		Sha1 sha1 = new Sha1();
+		int[] digest = new int[Sha1.DIGEST_INTS];
+		long hashes = 0;
+		int merged = 0;
+		for (int attempt = 0; index.size() < TABLE_CHAINS
+				&& attempt < 4 * TABLE_CHAINS; attempt++) {
+			int start = Rainbow.toWord(Rainbow.getNextWord(r));
+			int length = walk(start, table, sha1, digest);
+			hashes += Math.abs(length);
+			if (length < 0) {
+				cycles.incrementAndGet();
+			} else if (!index.put(EndpointHashIndex.key(digest), start)) {
+				merged++;
+			}
+		}
+		tables[table] = index;
+		merges.addAndGet(merged);
+		Metrics.hashes.addAndGet(hashes);
+		Metrics.chains.addAndGet(index.size());
+		Metrics.merges.addAndGet(merged);
+	}
+
+	/**
+	 * Walks from word to the next distinguished point, leaving its digest in
+	 * digest.
+	 * 
+	 * @return the number of hashes, negated if no distinguished point was
+	 *         reached within MAX_LENGTH
+	 */
+	private static int walk(int word, int table, Sha1 sha1, int[] digest) {
+		for (int i = 0; i < MAX_LENGTH; i++) {
+			sha1.hash(word, digest);
+			if (isDistinguished(digest)) {
+				return i + 1;
+			}
+			word = Sha1.reduce(digest, table);
+		}
+		return -MAX_LENGTH;
+	}
+
+	private static boolean isDistinguished(int[] digest) {
+		return (digest[0] >>> (32 - DP_BITS)) == 0;
+	}
+
+	@Override
+	public int search(int[] target) {
+		Sha1 sha1 = new Sha1();
+		int[] digest = new int[Sha1.DIGEST_INTS];
+		for (int table = 0; table < TABLES; table++) {
+			System.arraycopy(target, 0, digest, 0, digest.length);
+			int i = 0;
+			while (!isDistinguished(digest) && i++ < MAX_LENGTH) {
+				sha1.hash(Sha1.reduce(digest, table), digest);
+			}
+			Metrics.hashes.addAndGet(i);
+			Metrics.probes.incrementAndGet();
+			int start = tables[table].get(EndpointHashIndex.key(digest));
+			if (start < 0) {
+				continue;
+			}
+			Metrics.endpointHits.incrementAndGet();
+			int word = getPreimage(start, target, table, sha1, digest);
+			if (word >= 0) {
+				return word;
+			}
+			falseAlarms.incrementAndGet();
+			Metrics.falseAlarms.incrementAndGet();
+		}
+		return -1;
+	}
+
+	private static int getPreimage(int word, int[] target, int table,
+			Sha1 sha1, int[] digest) {
+		for (int i = 0; i < MAX_LENGTH; i++) {
+			sha1.hash(word, digest);
+			if (Arrays.equals(digest, target)) {
+				Metrics.hashes.addAndGet(i + 1);
+				Metrics.found(i);
+				return word;
+			}
+			if (isDistinguished(digest)) {
+				Metrics.hashes.addAndGet(i + 1);
+				return -1;
+			}
+			word = Sha1.reduce(digest, table);
+		}
+		Metrics.hashes.addAndGet(MAX_LENGTH);
+		return -1;
+	}
+
+	int falseAlarms() {
+		return falseAlarms.get();
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+		for (EndpointHashIndex index : tables) {
+			size += index.size();
+		}
+		return size;
+	}
+
+	// as the chains would be stored in a TableFile, for comparison
+	@Override
+	public long bytes() {
+		return (long) size() * TableFile.RECORD_BYTES;
+	}
+
+	private class BuildTask extends RecursiveAction {
+
+		private static final long	serialVersionUID	= 1L;
+
+		private final int			lo;
+		private final int			hi;
+
+		BuildTask(int lo, int hi) {
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		protected void compute() {
+			if (hi - lo == 1) {
+				buildTable(lo);
+				return;
+			}
+			int mid = (lo + hi) >>> 1;
+			invokeAll(new BuildTask(lo, mid), new BuildTask(mid, hi));
+		}
+	}
+}
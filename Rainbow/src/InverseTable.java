@@ -0,0 +1,134 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Full inverse of SHA-1 over the 24 bit word space, stored as a direct-address
+ * table. The top BUCKET_BITS bits of a digest pick a 64 byte bucket of 16
+ * slots, each holding a 24 bit word and an 8 bit fingerprint of the digest
+ * bits after the bucket number. A word whose bucket is full goes to the next
+ * bucket with room, so a lookup reads one cache line and rarely a second.
+ * Fingerprint matches are confirmed by hashing the word.
+ *
+ * The file is built straight into a mapping and read through a read-only
+ * mapping, so neither build nor lookup needs the 128 MB on the heap.
+ */
+class InverseTable implements Cracker {
+
+	static final int				MAGIC			= 0x52424931;	// "RBI1"
+	static final int				HEADER_BYTES	= 64;
+	static final int				BUCKET_BITS		= 21;
+	static final int				SLOTS			= 16;
+
+	private static final int		BUCKETS			= 1 << BUCKET_BITS;
+	private static final int		SLOT_MASK		= BUCKETS * SLOTS - 1;
+
+	private final MappedByteBuffer	slots;
+
+	private InverseTable(MappedByteBuffer slots) {
+		this.slots = slots;
+	}
+
+	private static int bucket(int[] digest) {
+		return digest[0] >>> (32 - BUCKET_BITS);
+	}
+
+	// never 0, which marks an empty slot
+	private static int fingerprint(int[] digest) {
+		int f = (digest[0] >>> (24 - BUCKET_BITS)) & 0xff;
+		return f == 0 ? 1 : f;
+	}
+
+	/**
+	 * Hashes every word and writes the table to filename.
+	 */
+	static void build(String filename) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(filename, "rw");
+		try {
+			long length = HEADER_BYTES + (SLOT_MASK + 1) * 4L;
+			file.setLength(0);
+			file.setLength(length);
+			MappedByteBuffer map = file.getChannel().map(
+					FileChannel.MapMode.READ_WRITE, 0, length);
+			Sha1 sha1 = new Sha1();
+			int[] digest = new int[Sha1.DIGEST_INTS];
+			int overflows = 0;
+			for (int word = 0; word < WordBitmap.WORD_SPACE; word++) {
+				sha1.hash(word, digest);
+				int slot = bucket(digest) * SLOTS;
+				while (map.getInt(HEADER_BYTES + slot * 4) != 0) {
+					slot = (slot + 1) & SLOT_MASK;
+				}
+				if (slot / SLOTS != bucket(digest)) {
+					overflows++;
+				}
+				map.putInt(HEADER_BYTES + slot * 4,
+						(fingerprint(digest) << 24) | word);
+			}
+			map.putInt(0, MAGIC);
+			map.putInt(4, BUCKET_BITS);
+			map.putInt(8, SLOTS);
+			map.putInt(12, WordBitmap.WORD_SPACE);
+			map.force();
+			System.out.println("Inverse table built, " + overflows
+					+ " words in a secondary bucket");
+		} finally {
+			file.close();
+		}
+	}
+
+	static InverseTable open(String filename) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(filename, "r");
+		try {
+			MappedByteBuffer map = file.getChannel().map(
+					FileChannel.MapMode.READ_ONLY, 0, file.length());
+			if (map.getInt(0) != MAGIC || map.getInt(4) != BUCKET_BITS
+					|| map.getInt(8) != SLOTS) {
+				throw new IOException(filename + " is not an inverse table");
+			}
+			return new InverseTable(map);
+		} finally {
+			file.close();
+		}
+	}
+
+	@Override
+	public int search(int[] target) {
+		return get(target, new Sha1(), new int[Sha1.DIGEST_INTS]);
+	}
+
+	@Override
+	public int size() {
+		return WordBitmap.WORD_SPACE;
+	}
+
+	@Override
+	public long bytes() {
+		return slots.capacity();
+	}
+
+	/**
+	 * @return the word hashing to digest, or -1 if there is none
+	 */
+	int get(int[] digest, Sha1 sha1, int[] hash) {
+		int fingerprint = fingerprint(digest);
+		// the bucket's slots, then the buckets its overflow spilled into
+		int slot = bucket(digest) * SLOTS;
+		while (true) {
+			int entry = slots.getInt(HEADER_BYTES + slot * 4);
+			if (entry == 0) {
+				return -1;
+			}
+			if ((entry >>> 24) == fingerprint) {
+				int word = entry & 0xffffff;
+				sha1.hash(word, hash);
+				if (Arrays.equals(hash, digest)) {
+					return word;
+				}
+			}
+			slot = (slot + 1) & SLOT_MASK;
+		}
+	}
+}
@@ -0,0 +1,109 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and histograms for building and cracking, shared by every thread.
+ * Hot loops add their counts once per walk rather than once per hash, so the
+ * counters cost nothing measurable. Latencies are kept in a histogram with
+ * four buckets per power of two, so percentiles are exact to within 19%.
+ */
+final class Metrics {
+
+	private static final int				SUB_BUCKETS		= 4;
+
+	static final AtomicLong					hashes			= new AtomicLong();
+	static final AtomicLong					probes			= new AtomicLong();
+	static final AtomicLong					endpointHits	= new AtomicLong();
+	static final AtomicLong					checkRejects	= new AtomicLong();
+	static final AtomicLong					falseAlarms		= new AtomicLong();
+	static final AtomicLong					chains			= new AtomicLong();
+	static final AtomicLong					merges			= new AtomicLong();
+
+	// preimages found at each chain position, the last counting every
+	// position past it in tables with longer chains
+	private static final AtomicLongArray	positions		= new AtomicLongArray(
+																	Rainbow.CHAIN_LENGTH);
+	// per-target latencies in microseconds
+	private static final AtomicLongArray	latencies		= new AtomicLongArray(
+																	64 * SUB_BUCKETS);
+
+	private Metrics() {
+	}
+
+	static void found(int position) {
+		positions.incrementAndGet(Math.min(position, positions.length() - 1));
+	}
+
+	static void latency(long nanos) {
+		latencies.incrementAndGet(bucket(Math.max(1, nanos / 1000)));
+	}
+
+	// a power of two, then which quarter of it
+	private static int bucket(long micros) {
+		int octave = 63 - Long.numberOfLeadingZeros(micros);
+		if (octave < 2) {
+			return (int) micros;
+		}
+		return octave * SUB_BUCKETS + (int) ((micros >>> (octave - 2)) & 3);
+	}
+
+	// the largest latency that falls in bucket
+	private static long upperBound(int bucket) {
+		int octave = bucket / SUB_BUCKETS;
+		if (octave < 2) {
+			return bucket;
+		}
+		long sub = bucket % SUB_BUCKETS;
+		return ((SUB_BUCKETS + sub + 1) << (octave - 2)) - 1;
+	}
+
+	/**
+	 * @return the latency in microseconds below which fraction of the targets
+	 *         fell, rounded up to its bucket
+	 */
+	static long percentile(double fraction) {
+		long total = 0;
+		for (int i = 0; i < latencies.length(); i++) {
+			total += latencies.get(i);
+		}
+		long rank = (long) Math.ceil(fraction * total);
+		long seen = 0;
+		for (int i = 0; i < latencies.length(); i++) {
+			seen += latencies.get(i);
+			if (seen >= rank && seen > 0) {
+				return upperBound(i);
+			}
+		}
+		return 0;
+	}
+
+	static String toJson() {
+		long targets = 0;
+		for (int i = 0; i < latencies.length(); i++) {
+			targets += latencies.get(i);
+		}
+		long found = 0;
+		StringBuilder hits = new StringBuilder();
+		for (int j = 0; j < positions.length(); j++) {
+			found += positions.get(j);
+			hits.append(j == 0 ? "" : ",").append(positions.get(j));
+		}
+		long built = chains.get();
+		long merged = merges.get();
+		return "{\"hashes\":" + hashes.get()
+				+ ",\"probes\":" + probes.get()
+				+ ",\"endpointHits\":" + endpointHits.get()
+				+ ",\"checkRejects\":" + checkRejects.get()
+				+ ",\"falseAlarms\":" + falseAlarms.get()
+				+ ",\"targets\":" + targets
+				+ ",\"found\":" + found
+				+ ",\"hitPositions\":[" + hits + "]"
+				+ ",\"latencyMicros\":{\"p50\":" + percentile(0.5)
+				+ ",\"p99\":" + percentile(0.99)
+				+ ",\"max\":" + percentile(1.0) + "}"
+				+ ",\"build\":{\"chains\":" + built
+				+ ",\"merges\":" + merged
+				+ ",\"mergeRate\":" + (built + merged == 0 ? 0.0 : merged
+						/ (double) (built + merged)) + "}}";
+	}
+}
@@ -1,41 +1,96 @@
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 import java.util.Random;
 import java.util.Scanner;
+import java.util.concurrent.ForkJoinPool;
 
 public class Rainbow {
 
 	private static final boolean			NAIVE				= false;
+	private static final boolean			HELLMAN				= false;
+	private static final boolean			FUZZY				= false;
+	private static final boolean			BATCHED				= true;
+	// keep the tables loaded and answer digests on a loopback port
+	private static final boolean			SERVE				= false;
+	private static final int				SERVER_PORT			= 4236;
+	// Bloom filter in front of the endpoint lookups
+	private static final boolean			FILTERED			= false;
+	private static final double				FILTER_FPP			= 0.01;
 	private static final double				NAIVE_TABLE_LENGTH	= Math.pow(2,
 																		24);
+	private static final String				INVERSE_FILENAME	= "complete-table.bin";
+	// NAIVE_SORTED uses a sorted exhaustive table instead of the inverse
+	private static final boolean			NAIVE_SORTED		= false;
+	private static final String				SORTED_FILENAME		= "complete-table.srt";
+	private static final int				RUN_WORDS			= 1 << 20;
 
-	private static final int				CHAIN_LENGTH		= (int) Math
+	static final int						CHAIN_LENGTH		= (int) Math
 																		.pow(2,
 																				7.8);
 	private static final int				TABLE_LENGTH		= (int) (Math
 																		.pow(2,
 																				23.4) / CHAIN_LENGTH);
 	private static final int				SEED				= 6972868;
+	// table t reduces with iteration j + t * CHAIN_LENGTH
+	private static final int				TABLE_COUNT			= 1;
+
+	private static final int				THREADS				= Runtime
+																		.getRuntime()
+																		.availableProcessors();
+	private static final int				BUILD_BATCH			= 4096;
+	// chain i starts from startWord(t, i), and tables store i instead of
+	// the start word
+	private static final boolean			INDEXED_STARTS		= false;
+	// STREAMED builds sort finished chains into runs of STREAM_RUN_CHAINS
+	// on disk instead of holding the table in memory
+	private static final boolean			STREAMED			= false;
+	private static final int				STREAM_RUN_CHAINS	= 1 << 20;
+	// builds save their progress every CHECKPOINT_BATCHES batches
+	private static final int				CHECKPOINT_BATCHES	= 4;
+	private static final String				CHECKPOINT_NAME		= "build%d";
+	private static final int				REDUCE_VARIANT		= 1;
+	private static final String				TABLE_FILENAME		= "table%d.bin";
+	// Rice coded tables keep COMPRESSED_KEY_BITS bits of each endpoint
+	private static final boolean			COMPRESSED			= false;
+	private static final int				COMPRESSED_KEY_BITS	= 32;
+	private static final String				COMPRESSED_FILENAME	= "table%d.rbz";
+	// memo of 2^TAIL_CACHE_BITS tail walks for the batched search, 0 for none;
+	// 22 gives a 64 MB cache
+	private static final int				TAIL_CACHE_BITS		= 0;
+	// counters and histograms of the run, see Metrics
+	private static final String				METRICS_FILENAME	= "metrics.json";
 
-	private static HashMap<String, String>	table				= new HashMap<>();
-	private static HashMap<String, String>	table2				= new HashMap<>();
 	private static HashMap<String, String>	inputs				= new HashMap<>();
-	private static HashMap<String, String>	words				= new HashMap<>();
-	private static ArrayList<byte[]>		hashesToCrack		= new ArrayList<>();
+	private static WordBitmap				words				= new WordBitmap();
+	private static ArrayList<int[]>			hashesToCrack		= new ArrayList<>();
+	private static EndpointHashIndex[]		chains				= new EndpointHashIndex[TABLE_COUNT];
+	private static EndpointIndex[]			endpoints			= new EndpointIndex[TABLE_COUNT];
+	private static ForkJoinPool				pool				= new ForkJoinPool(
+																		THREADS);
+	private static TailCache				tailCache;
 
 	private static int						found				= 0;
 
 	private static long						bigT				= 0;
+
 	private static long						smallT				= 0;
 
 	public static void main(String[] args) throws Exception {
@@ -52,13 +107,46 @@ public class Rainbow {
 		timeTest();
 
 		if (NAIVE) {
-			buildNaive();
-			readNaiveTableFromFile();
-			solveNaive();
+			if (NAIVE_SORTED) {
+				if (!new File(SORTED_FILENAME).exists()) {
+					new ExhaustiveBuild(SORTED_FILENAME, RUN_WORDS).build(pool);
+				}
+				solveNaive(sortedCracker(TableFile.open(SORTED_FILENAME)));
+			} else {
+				if (!new File(INVERSE_FILENAME).exists()) {
+					InverseTable.build(INVERSE_FILENAME);
+				}
+				solveNaive(InverseTable.open(INVERSE_FILENAME));
+			}
+			// buildNaive();
 			// solveNaiveWithoutTable();
 			return;
 		}
 
+		if (HELLMAN) {
+			HellmanTable hellman = new HellmanTable();
+			hellman.build(pool);
+			System.out.println("Table built");
+			readInputFile();
+			crack(hellman);
+			System.out.println("False alarms = " + hellman.falseAlarms());
+			report(hellman);
+			writeMetrics();
+			return;
+		}
+
+		if (FUZZY) {
+			FuzzyTable fuzzy = new FuzzyTable();
+			fuzzy.build(pool);
+			System.out.println("Table built");
+			readInputFile();
+			crack(fuzzy);
+			System.out.println("False alarms = " + fuzzy.falseAlarms());
+			report(fuzzy);
+			writeMetrics();
+			return;
+		}
+
 		// step 0. test
 		// testFile();
 		System.out.println(toHexString(hash("20c11b")) + " vs "
@@ -73,124 +161,445 @@ public class Rainbow {
 		// step 1. build
 		boolean written = false;
 		if (!written) {
-			build();
-			System.out.println("Table built");
-			writeTableToFile();
-			System.out.println("Table written");
+			for (int t = 0; t < TABLE_COUNT; t++) {
+				if (readWrittenTable(t)) {
+					System.out.println("Table " + t + " already written");
+					continue;
+				}
+				if (STREAMED) {
+					buildStreamed(t);
+					System.out.println("Table " + t + " built and written");
+					readTableFromFile(t);
+					continue;
+				}
+				build(t);
+				System.out.println("Table " + t + " built");
+				writeTableToFile(t);
+				checkpoint(t).delete();
+				System.out.println("Table " + t + " written");
+				// crack through the stored table, as after a restart
+				readTableFromFile(t);
+			}
 			// verify();
 			// System.out.println("Table verified");
 		} else {
-			readTableFromFile();
-			System.out.println("Table read into memory");
+			for (int t = 0; t < TABLE_COUNT; t++) {
+				readTableFromFile(t);
+			}
+			System.out.println("Table mapped into memory");
+		}
+
+		if (FILTERED) {
+			for (int t = 0; t < TABLE_COUNT; t++) {
+				endpoints[t] = new FilteredIndex(endpoints[t], FILTER_FPP);
+			}
+		}
+
+		if (TAIL_CACHE_BITS > 0) {
+			tailCache = new TailCache(TAIL_CACHE_BITS);
+		}
+
+		if (SERVE) {
+			new TableServer(rainbowCracker(), endpoints, pool, tailCache)
+					.serve(SERVER_PORT);
+			return;
 		}
 
 		// step 2. crack
 		readInputFile();
 		System.out.println("Input file read");
-		crack();
+		Cracker rainbow = rainbowCracker();
+		if (BATCHED) {
+			crackBatched();
+		} else {
+			crack(rainbow);
+		}
 		System.out.println("Crack complete");
 
 		// step 3. report
-		System.out.println("Table size = " + table.size());
+		long hits = Metrics.endpointHits.get();
+		long withChecks = Metrics.falseAlarms.get();
+		long withoutChecks = withChecks + Metrics.checkRejects.get();
+		System.out.println(String.format("Endpoint hits = %d, false alarms "
+				+ "= %d (%.1f%%) without check bits, %d (%.1f%%) with "
+				+ CheckBits.COUNT, hits, withoutChecks, hits == 0 ? 0.0
+				: withoutChecks * 100.0 / hits, withChecks, hits == 0 ? 0.0
+				: withChecks * 100.0 / hits));
+		if (FILTERED) {
+			for (EndpointIndex index : endpoints) {
+				System.out.println(((FilteredIndex) index).stats());
+			}
+		}
+		if (BATCHED && tailCache != null) {
+			System.out.println(tailCache.stats());
+		}
+		report(rainbow);
+		writeMetrics();
+	}
+
+	private static Cracker rainbowCracker() {
+		return new Cracker() {
+			@Override
+			public int search(int[] target) {
+				return Rainbow.search(target);
+			}
+
+			@Override
+			public int size() {
+				int size = 0;
+				for (EndpointIndex index : endpoints) {
+					size += index.size();
+				}
+				return size;
+			}
+
+			@Override
+			public long bytes() {
+				long bytes = 0;
+				for (EndpointIndex index : endpoints) {
+					bytes += index.bytes();
+				}
+				return bytes;
+			}
+		};
+	}
+
+	private static void report(Cracker cracker) {
+		System.out.println("Table size = " + cracker.size());
 		System.out.println("Speedup = " + ((1000 * 4754.0) / smallT));
-		System.out.println("Table bytes = "
-				+ ((table.size() * (160 + 24)) / 8000.0));
+		System.out.println("Table bytes = " + (cracker.bytes() / 1000.0));
 		System.out.println("End");
 	}
 
-	private static void build() throws Exception {
-		Random r = new Random(SEED);
-		for (int i = 0; i < TABLE_LENGTH; i++) {
-			// if (i % 1000 == 0)
-			// System.out.println(i);
-
-			byte[] originalWord;
-			String originalWordString;
-			do {
-				originalWord = getNextWord(r);
-				originalWordString = toHexString(originalWord);
-			} while (words.containsKey(originalWordString));
-			words.put(originalWordString, "");
-
-			byte[] word = toByteArray(originalWordString);
-			byte[] hash = new byte[20];
-			ArrayList<String> buffer = new ArrayList<>();
-			for (int j = 0; j < CHAIN_LENGTH; j++) {
-				hash = hash(word); // hash w0 -> y0
-				word = reduce(hash, j); // reduce y0 -> w1
-				buffer.add(toHexString(word));
+	private static void writeMetrics() throws Exception {
+		BufferedWriter bw = new BufferedWriter(
+				new FileWriter(METRICS_FILENAME));
+		bw.write(Metrics.toJson());
+		bw.write("\n");
+		bw.close();
+		System.out.println("Metrics written to " + METRICS_FILENAME);
+	}
+
+	private static void build(int t) throws Exception {
+		// chains are walked in parallel a batch at a time, then committed in
+		// chain order so the table does not depend on the number of threads
+		EndpointHashIndex table = new EndpointHashIndex(TABLE_LENGTH);
+		BuildCheckpoint checkpoint = checkpoint(t);
+		int first = checkpoint.resume(words, table);
+		long merges = checkpoint.merges();
+		Metrics.chains.addAndGet(table.size());
+		Metrics.merges.addAndGet(merges);
+		long[] committedEnds = new long[CHECKPOINT_BATCHES * BUILD_BATCH];
+		int[] committedStarts = new int[CHECKPOINT_BATCHES * BUILD_BATCH];
+		int committed = 0;
+		ChainBatch batch = new ChainBatch(BUILD_BATCH, CHAIN_LENGTH);
+		// base counts chains built, or chain indices tried if INDEXED_STARTS
+		for (int base = first; table.size() < TABLE_LENGTH;
+				base += BUILD_BATCH) {
+			int count = Math.min(BUILD_BATCH,
+					(INDEXED_STARTS ? WordBitmap.WORD_SPACE : TABLE_LENGTH)
+							- base);
+			if (count <= 0) {
+				throw new IllegalStateException("Ran out of chain indices with "
+						+ table.size() + " chains built");
 			}
-			String finalHashString = toHexString(hash);
+			batch.prepare(t, base, count, t * TABLE_LENGTH + base,
+					INDEXED_STARTS, words);
+			// an indexed chain that covers nothing new is dropped, while a
+			// random one draws another start word
+			while (batch.remaining > 0) {
+				batch.walk(pool, INDEXED_STARTS, words, reduceOffset(t));
+				int retry = 0;
+				for (int n = 0; n < batch.remaining
+						&& table.size() < TABLE_LENGTH; n++) {
+					int s = batch.pending[n];
+					if (!words.add(batch.starts[s])) {
+						// covered by an earlier chain of this batch
+						if (!INDEXED_STARTS) {
+							batch.pending[retry++] = s;
+						}
+						continue;
+					}
+					int entry = CheckBits.entry(INDEXED_STARTS ? base + s
+							: batch.starts[s], batch.buffers[s]);
+					if (!table.put(batch.ends[s], entry)) {
+						// merged into a chain already in the table
+						merges++;
+						Metrics.merges.incrementAndGet();
+						if (!INDEXED_STARTS) {
+							batch.pending[retry++] = s;
+						}
+						continue;
+					}
+					Metrics.chains.incrementAndGet();
+					for (int w : batch.buffers[s]) {
+						words.add(w);
+					}
+					committedEnds[committed] = batch.ends[s];
+					committedStarts[committed++] = entry;
+				}
+				batch.remaining = retry;
+			}
+			int next = base + count;
+			if (next % (CHECKPOINT_BATCHES * BUILD_BATCH) == 0
+					&& table.size() < TABLE_LENGTH) {
+				checkpoint.save(committedEnds, committedStarts, committed, next,
+						merges, words);
+				committed = 0;
+			}
+		}
+		System.out.println("Number of words used: " + words.size() + " ("
+				+ words.coverage() + "% of the word space)");
+		words.clear();
+		chains[t] = table;
+	}
 
-			if (table.containsKey(finalHashString)) {
-				i--;
-			} else {
-				table.put(finalHashString, originalWordString);
-				for (String s : buffer) {
-					words.put(s, "");
+	/**
+	 * Builds table t straight into its table file. Finished chains are
+	 * sorted into runs on disk, and the runs are merged into one, keeping the
+	 * first chain of every endpoint. Merged chains are only found in the
+	 * merge, so more chains are walked, in proportion to the ones that
+	 * survived the last merge, until the table is full. Which chains survive
+	 * is only known after the merge, so start words are not checked against
+	 * coverage, and the coverage is worked out by walking the chains of the
+	 * finished table again. Memory is the coverage bitmap, one run and a read
+	 * buffer per run, however large the table.
+	 */
+	private static void buildStreamed(int t) throws Exception {
+		if (COMPRESSED) {
+			throw new IllegalStateException(
+					"Streamed builds write uncompressed tables");
+		}
+		String filename = tableFilename(t);
+		List<File> runs = new ArrayList<>();
+		long[] records = new long[STREAM_RUN_CHAINS];
+		int buffered = 0;
+		ChainBatch batch = new ChainBatch(BUILD_BATCH, CHAIN_LENGTH);
+		long next = 0;
+		long count = 0;
+		long wanted = TABLE_LENGTH;
+		for (int pass = 0; count < TABLE_LENGTH; pass++) {
+			long first = next;
+			long end = next + wanted;
+			while (next < end) {
+				int size = (int) Math.min(BUILD_BATCH, end - next);
+				if (INDEXED_STARTS && next + size > WordBitmap.WORD_SPACE) {
+					throw new IllegalStateException(
+							"Ran out of chain indices with " + count
+									+ " chains built");
+				}
+				// numbered apart from the chains of build(), and words is
+				// empty, so no start word is skipped
+				batch.prepare(t, next, size, ((long) (t + 1) << 32) + next,
+						INDEXED_STARTS, words);
+				batch.walk(pool, INDEXED_STARTS, words, reduceOffset(t));
+				for (int n = 0; n < batch.remaining; n++) {
+					int s = batch.pending[n];
+					int entry = CheckBits.entry(INDEXED_STARTS ? (int) next
+							+ s : batch.starts[s], batch.buffers[s]);
+					records[buffered++] = TableFile.record(
+							batch.ends[s] >>> (64 - TableFile.KEY_BITS),
+							entry, CheckBits.COUNT);
+					if (buffered == records.length) {
+						runs.add(streamRun(filename, runs.size(), records,
+								buffered));
+						buffered = 0;
+					}
 				}
+				next += size;
 			}
+			if (buffered > 0) {
+				runs.add(streamRun(filename, runs.size(), records, buffered));
+				buffered = 0;
+			}
+
+			// the previous merge is the first run, so its chains win, and the
+			// last pass stops once the table is full
+			File merged = new File(filename + ".merge" + pass);
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(merged),
+							ExternalSort.BUFFER_BYTES));
+			long before = count;
+			try {
+				count = ExternalSort.merge(runs, out, 24 + CheckBits.COUNT,
+						TABLE_LENGTH);
+			} finally {
+				out.close();
+				for (File run : runs) {
+					run.delete();
+				}
+			}
+			runs.clear();
+			runs.add(merged);
+			System.out.println("Pass " + pass + ": " + (next - first)
+					+ " chains walked, " + count + " in the table");
+			if (count == before) {
+				throw new IllegalStateException("No new chains in pass "
+						+ pass + " with " + count + " chains built");
+			}
+			wanted = (TABLE_LENGTH - count) * (next - first)
+					/ (count - before) + 1;
 		}
-		System.out.println("Number of words used: " + words.size());
+		Metrics.chains.addAndGet(count);
+		Metrics.merges.addAndGet(next - count);
+
+		File merged = runs.get(0);
+		int indexBits = indexBits(cover(t, merged, batch));
+		File temp = tempTableFile(t);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(temp), ExternalSort.BUFFER_BYTES));
+		try {
+			TableFile.writeHeader(out, (int) count, CHAIN_LENGTH,
+					TABLE_LENGTH, SEED, REDUCE_VARIANT, reduceOffset(t),
+					CheckBits.COUNT, indexBits);
+			Files.copy(merged.toPath(), out);
+		} finally {
+			out.close();
+			merged.delete();
+		}
+		publishTableFile(t, temp);
+		System.out.println("Number of words used: " + words.size() + " ("
+				+ words.coverage() + "% of the word space)");
 		words.clear();
 	}
 
+	/**
+	 * Walks the chains of the sorted records in merged again, marking their
+	 * words covered.
+	 *
+	 * @return the largest start field of the records
+	 */
+	private static int cover(int t, File merged, ChainBatch batch)
+			throws IOException {
+		int maxStart = 0;
+		int[] startWords = new int[BUILD_BATCH];
+		int count = 0;
+		long records = merged.length() / TableFile.RECORD_BYTES;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(merged), ExternalSort.BUFFER_BYTES));
+		try {
+			for (long n = records; n > 0; n--) {
+				int start = (int) in.readLong() & 0xffffff;
+				maxStart = Math.max(maxStart, start);
+				startWords[count++] = chainStart(t, start);
+				if (count == BUILD_BATCH || n == 1) {
+					batch.prepare(startWords, count);
+					batch.walk(pool, true, words, reduceOffset(t));
+					for (int s = 0; s < count; s++) {
+						for (int w : batch.buffers[s]) {
+							words.add(w);
+						}
+					}
+					count = 0;
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return maxStart;
+	}
+
+	// chain indices take only as many bits as the largest one
+	private static int indexBits(int maxStart) {
+		return INDEXED_STARTS ? Math.max(1,
+				32 - Integer.numberOfLeadingZeros(maxStart)) : 0;
+	}
+
+	private static File streamRun(String filename, int run, long[] records,
+			int count) throws IOException {
+		File file = new File(filename + ".run" + run);
+		ExternalSort.writeRun(file, records, count);
+		return file;
+	}
+
+	static int reduceOffset(int t) {
+		return t * CHAIN_LENGTH;
+	}
+
+	private static String tableFilename(int t) {
+		return String.format(COMPRESSED ? COMPRESSED_FILENAME
+				: TABLE_FILENAME, t);
+	}
+
+	private static BuildCheckpoint checkpoint(int t) {
+		return new BuildCheckpoint(String.format(CHECKPOINT_NAME, t),
+				CHAIN_LENGTH, TABLE_LENGTH, SEED, REDUCE_VARIANT,
+				reduceOffset(t), CheckBits.COUNT, INDEXED_STARTS ? 1 : 0);
+	}
+
+	/**
+	 * @return the start word of chain index of table t, a keyed bijection of
+	 *         the 24 bit word space so that no two indices share a start word
+	 */
+	static int startWord(int t, int index) {
+		int x = (index + SEED + t * 0x5bd1e9) & 0xffffff;
+		x = (x ^ (x >>> 12)) * 0x9e3779 & 0xffffff;
+		x = (x ^ (x >>> 11)) * 0x2c1b3d & 0xffffff;
+		return x ^ (x >>> 12);
+	}
+
+	/**
+	 * @return the start word of the chain of an index entry of table t
+	 */
+	static int chainStart(int t, int entry) {
+		int start = CheckBits.start(entry);
+		return INDEXED_STARTS ? startWord(t, start) : start;
+	}
+
+	static long chainSeed(long chain) {
+		long z = ((long) SEED << 32) + chain;
+		z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+		z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		return z ^ (z >>> 33);
+	}
+
 	private static void readInputFile() throws Exception {
 		// BufferedWriter bw = new BufferedWriter(new FileWriter("result.txt"));
 		Scanner sc = new Scanner(new BufferedInputStream(new FileInputStream(
 				"SAMPLE_INPUT.data")));
-		for (int i = 0; i < 1000; i++) { // for each given hash
+		while (sc.hasNext()) { // for each given hash
 
-			// convert given hex string into byte[]
-			ByteBuffer bf = ByteBuffer.allocate(20);
+			// convert given hex string into int[]
+			int[] inputHash = new int[Sha1.DIGEST_INTS];
 			for (int j = 0; j < 5; j++) {
-				bf.putInt((int) sc.nextLong(16));
+				inputHash[j] = (int) sc.nextLong(16);
 			}
-			byte[] inputHash = bf.array();
 			hashesToCrack.add(inputHash);
 		}
 		// bw.close();
 		sc.close();
 	}
 
-	private static void crack() throws Exception {
+	private static void crack(Cracker cracker) throws Exception {
 		long startTime = System.currentTimeMillis();
+		// targets are searched in parallel, results are kept in input order
+		int[] results = new int[hashesToCrack.size()];
+		pool.invoke(new CrackTask(cracker, hashesToCrack, results, 0,
+				results.length));
+		writeResults(results, startTime);
+	}
+
+	private static void crackBatched() throws Exception {
+		long startTime = System.currentTimeMillis();
+		int[] results = new BatchCracker(endpoints, pool, tailCache)
+				.searchAll(hashesToCrack);
+		writeResults(results, startTime);
+	}
+
+	private static void writeResults(int[] results, long startTime)
+			throws Exception {
 		BufferedWriter bw = new BufferedWriter(new FileWriter("result.txt"));
-		for (byte[] inputHash : hashesToCrack) { // for each given hash
-
-			byte[] resultWord;
-			boolean got = false;
-			for (int j = CHAIN_LENGTH - 1, j2 = 0; j >= 0; j--, j2++) {
-				byte[] word;
-				byte[] hash = Arrays.copyOf(inputHash, inputHash.length); // hashed
-																			// w0
-																			// ->
-																			// y0
-				for (int k = j; k < CHAIN_LENGTH - 1; k++) {
-					word = reduce(hash, k); // reduce yk -> wk+1
-					hash = hash(word); // hash wx -> yx
-				}
-				String hashString = toHexString(hash);
-				if (table.containsKey(hashString)) {
-					resultWord = getPreimage(table.get(hashString), inputHash,
-							j2 + 1);
-					if (!Arrays.equals(resultWord, new byte[1])) {
-						found++;
-						got = true;
-						String resultWordString = toHexString(resultWord);
-						bw.write(resultWordString);
-						bw.write("\n");
-						break;
-					}
-				}
-			}
-			if (!got) {
+		for (int resultWord : results) {
+			if (resultWord >= 0) {
+				found++;
+				bw.write(toHexString(resultWord));
+				bw.write("\n");
+			} else {
 				bw.write("0\n");
 			}
 		}
 		System.out.println("Words found = " + found);
 		bw.close();
-		// sc.close();
 
 		long endTime = System.currentTimeMillis();
 		long timeTaken = ((endTime - startTime));
@@ -199,20 +608,89 @@ public class Rainbow {
 				+ " milliseconds");
 	}
 
-	private static byte[] getPreimage(String startWordString,
-			byte[] targetHash, int numTimes) throws Exception {
+	static int search(int[] inputHash) {
+		Sha1Lanes lanes = new Sha1Lanes();
+		Sha1 sha1 = new Sha1();
+		int[] hash = new int[Sha1.DIGEST_INTS];
+		int[][] digest = lanes.digest;
+		int[] walkBits = new int[Sha1Lanes.LANES];
+		// positions are tried a lane group at a time on every table, so the
+		// short tail walks of all tables come before the long ones
+		for (int j0 = CHAIN_LENGTH - 1; j0 >= 0; j0 -= Sha1Lanes.LANES) {
+			int lo = Math.max(0, j0 - Sha1Lanes.LANES + 1);
+			for (int t = 0; t < TABLE_COUNT; t++) {
+				int offset = reduceOffset(t);
+				// lane l walks from position j0 - l; lanes that start later
+				// are held at the input hash until the walk reaches them
+				for (int i = 0; i < Sha1.DIGEST_INTS; i++) {
+					Arrays.fill(digest[i], inputHash[i]); // y_j
+				}
+				Arrays.fill(walkBits, 0);
+				for (int k = lo; k < CHAIN_LENGTH - 1; k++) {
+					lanes.reduce(k + offset); // reduce yk -> wk+1
+					int bit = CheckBits.bit(k + 1);
+					if (bit >= 0) {
+						for (int l = 0; l < Sha1Lanes.LANES; l++) {
+							walkBits[l] |= (lanes.words[l] & 1) << bit;
+						}
+					}
+					lanes.hash(); // hash wx -> yx
+					for (int l = 0; l < j0 - k; l++) {
+						for (int i = 0; i < Sha1.DIGEST_INTS; i++) {
+							digest[i][l] = inputHash[i];
+						}
+					}
+				}
+				Metrics.hashes.addAndGet((long) (CHAIN_LENGTH - 1 - lo)
+						* Sha1Lanes.LANES);
+				Metrics.probes.addAndGet(j0 - lo + 1);
+				for (int l = 0; l <= j0 - lo; l++) {
+					int entry = endpoints[t].get(lanes.key(l));
+					if (entry >= 0 && checkAlarm(entry, walkBits[l], j0 - l)) {
+						int resultWord = getPreimage(chainStart(t, entry),
+								inputHash, offset, sha1, hash);
+						if (resultWord >= 0) {
+							return resultWord;
+						}
+						Metrics.falseAlarms.incrementAndGet();
+					}
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Counts an endpoint hit for a tail walk from position and checks it
+	 * against the chain's check bits.
+	 * 
+	 * @return false if the check bits rule the chain out
+	 */
+	static boolean checkAlarm(int entry, int walkBits, int position) {
+		Metrics.endpointHits.incrementAndGet();
+		if (CheckBits.match(entry, walkBits, position)) {
+			return true;
+		}
+		Metrics.checkRejects.incrementAndGet();
+		return false;
+	}
+
+	static int getPreimage(int startWord, int[] targetHash,
+			int offset, Sha1 sha1, int[] hash) {
 		// get the preimage of hash by chaining until hash
-		byte[] word = toByteArray(startWordString);
-		byte[] hash = new byte[20];
-		hash = hash(word);
+		int word = startWord;
+		sha1.hash(word, hash);
 		for (int j = 0; j < CHAIN_LENGTH; j++) {
 			if (Arrays.equals(hash, targetHash)) {
+				Metrics.hashes.addAndGet(j + 1);
+				Metrics.found(j);
 				return word;
 			}
-			word = reduce(hash, j);
-			hash = hash(word);
+			word = Sha1.reduce(hash, j + offset);
+			sha1.hash(word, hash);
 		}
-		return new byte[1];
+		Metrics.hashes.addAndGet(CHAIN_LENGTH + 1);
+		return -1;
 	}
 
 	private static byte[] hash(String wordString) throws Exception {
@@ -220,12 +698,12 @@ public class Rainbow {
 		return hash(word);
 	}
 
-	private static byte[] hash(byte[] word) throws Exception {
+	static byte[] hash(byte[] word) throws Exception {
 		MessageDigest sha1 = MessageDigest.getInstance("SHA1");
 		return sha1.digest(word);
 	}
 
-	private static byte[] reduce(byte[] hash, int iteration) {
+	static byte[] reduce(byte[] hash, int iteration) {
 		int start = iteration % 17;
 		byte[] reduced = Arrays.copyOfRange(hash, start, start + 3);
 		reduced[0] += (71 * iteration) % 251;
@@ -234,7 +712,7 @@ public class Rainbow {
 		return reduced;
 	}
 
-	private static byte[] reduce2(byte[] hash, int iteration) {
+	static byte[] reduce2(byte[] hash, int iteration) {
 		IntBuffer intBuf = ByteBuffer.wrap(hash).order(ByteOrder.BIG_ENDIAN)
 				.asIntBuffer();
 		int[] d = new int[intBuf.remaining()];
@@ -248,7 +726,7 @@ public class Rainbow {
 		return reduced;
 	}
 
-	private static byte[] reduce3(byte[] hash, int iteration) {
+	static byte[] reduce3(byte[] hash, int iteration) {
 		byte last_byte = (byte) iteration;
 		byte[] word = new byte[3];
 		for (int i = 0; i < word.length; i++) {
@@ -257,7 +735,7 @@ public class Rainbow {
 		return word;
 	}
 
-	private static String toHexString(byte[] barr) {
+	static String toHexString(byte[] barr) {
 		StringBuffer sb = new StringBuffer();
 		for (int i = 0; i < barr.length; i++) {
 			sb.append(Integer.toString((barr[i] & 0xff) + 0x100, 16).substring(
@@ -269,7 +747,25 @@ public class Rainbow {
 		// return str;
 	}
 
-	private static byte[] getNextWord(Random r) {
+	static String toHexString(int word) {
+		return Integer.toHexString(word | 0x1000000).substring(1);
+	}
+
+	static String toHexString(int[] digest) {
+		StringBuilder sb = new StringBuilder();
+		for (int d : digest) {
+			sb.append(Long.toHexString((d & 0xffffffffL) | 0x100000000L)
+					.substring(1));
+		}
+		return sb.toString();
+	}
+
+	static int toWord(byte[] word) {
+		return ((word[0] & 0xff) << 16) | ((word[1] & 0xff) << 8)
+				| (word[2] & 0xff);
+	}
+
+	static byte[] getNextWord(Random r) {
 		byte[] nextWord = new byte[3];
 		r.nextBytes(nextWord);
 		return nextWord;
@@ -281,19 +777,67 @@ public class Rainbow {
 		return Arrays.copyOfRange(bf.array(), 1, 4);
 	}
 
-	private static void writeTableToFile() throws Exception {
-		BufferedWriter bw = new BufferedWriter(new FileWriter("table.data"));
-		for (Map.Entry<String, String> e : table.entrySet()) {
-			bw.write(e.getKey());
-			bw.write(" ");
-			bw.write(e.getValue());
-			bw.write("\n");
+	private static void writeTableToFile(int t) throws Exception {
+		EndpointHashIndex table = chains[t];
+		long[] records = new long[table.size()];
+		int n = 0;
+		int maxStart = 0;
+		for (int slot = 0; slot < table.capacity(); slot++) {
+			if (table.isUsed(slot)) {
+				long key = table.keyAt(slot) >>> (64 - TableFile.KEY_BITS);
+				records[n++] = TableFile.record(key, table.startAt(slot),
+						CheckBits.COUNT);
+				maxStart = Math.max(maxStart,
+						CheckBits.start(table.startAt(slot)));
+			}
 		}
-		bw.flush();
-		bw.close();
+		int indexBits = indexBits(maxStart);
+		File temp = tempTableFile(t);
+		if (COMPRESSED) {
+			CompressedTable.write(temp.getPath(), records, n,
+					COMPRESSED_KEY_BITS, CheckBits.COUNT, indexBits,
+					CHAIN_LENGTH, TABLE_LENGTH, SEED, REDUCE_VARIANT,
+					reduceOffset(t));
+		} else {
+			TableFile.write(temp.getPath(), records, n, CHAIN_LENGTH,
+					TABLE_LENGTH, SEED, REDUCE_VARIANT, reduceOffset(t),
+					CheckBits.COUNT, indexBits);
+		}
+		publishTableFile(t, temp);
 	}
 
-	private static byte[] toByteArray(String startWordString) {
+	// table files are written under this name and renamed once complete, so
+	// a table file is never left half written
+	private static File tempTableFile(int t) {
+		return new File(tableFilename(t) + ".tmp");
+	}
+
+	private static void publishTableFile(int t, File temp) throws IOException {
+		Files.move(temp.toPath(), new File(tableFilename(t)).toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Maps table t if an earlier run already wrote it with the same
+	 * parameters, so a restarted build goes on from the first table missing.
+	 *
+	 * @return false if table t still has to be built
+	 */
+	private static boolean readWrittenTable(int t) throws Exception {
+		if (!new File(tableFilename(t)).exists()) {
+			return false;
+		}
+		try {
+			readTableFromFile(t);
+			return true;
+		} catch (IOException e) {
+			System.out.println(e.getMessage() + ", building it again");
+			return false;
+		}
+	}
+
+	static byte[] toByteArray(String startWordString) {
 		ByteBuffer bf = ByteBuffer.allocate(4);
 		Scanner sc = new Scanner(startWordString);
 		bf.putInt(sc.nextInt(16));
@@ -320,37 +864,50 @@ public class Rainbow {
 
 	private static boolean verify() throws Exception {
 		int failCount = 0;
-		for (Map.Entry<String, String> e : table.entrySet()) {
-			byte[] word = toByteArray(e.getValue());
-			byte[] hash = new byte[20];
-			for (int j = 0; j < CHAIN_LENGTH; j++) {
-				hash = hash(word);
-				word = reduce(hash, j);
-			}
-			if (!e.getKey().equals(toHexString(hash))) {
-				failCount++;
-				System.out.println("failed! " + e.getValue()
-						+ " does not chain to " + e.getKey());
-			}
+		Sha1 sha1 = new Sha1();
+		int[] hash = new int[Sha1.DIGEST_INTS];
+		int total = 0;
+		for (int t = 0; t < TABLE_COUNT; t++) {
+			EndpointHashIndex table = chains[t];
+			int offset = reduceOffset(t);
+			total += table.size();
+			for (int slot = 0; slot < table.capacity(); slot++) {
+				if (!table.isUsed(slot)) {
+					continue;
+				}
+				int startWord = chainStart(t, table.startAt(slot));
+				int word = startWord;
+				for (int j = 0; j < CHAIN_LENGTH; j++) {
+					word = sha1.hashReduce(word, j + offset, hash);
+				}
+				if (table.keyAt(slot) != EndpointHashIndex.key(hash)) {
+					failCount++;
+					System.out.println("failed! " + toHexString(startWord)
+							+ " does not chain to " + toHexString(hash));
+				}
 
-			byte[] firstWordHash = hash(e.getValue());
-			byte[] preimage = getPreimage(e.getValue(), (firstWordHash), 0);
-			if (!e.getValue().equals(toHexString(preimage))) {
-				System.out
-						.println("failed! " + e.getValue()
-								+ " can't be gotten from "
-								+ toHexString(firstWordHash));
-			}
-			byte[] secondWord = reduce(firstWordHash, 0);
-			byte[] secondWordHash = hash(secondWord);
-			byte[] preimage2 = getPreimage(e.getValue(), (secondWordHash), 0);
-			if (!toHexString(secondWord).equals(toHexString(preimage2))) {
-				System.out.println("failed! " + toHexString(secondWord)
-						+ " can't be gotten from "
-						+ toHexString(secondWordHash));
+				int[] firstWordHash = new int[Sha1.DIGEST_INTS];
+				sha1.hash(startWord, firstWordHash);
+				int preimage = getPreimage(startWord, firstWordHash, offset,
+						sha1, hash);
+				if (preimage != startWord) {
+					System.out.println("failed! " + toHexString(startWord)
+							+ " can't be gotten from "
+							+ toHexString(firstWordHash));
+				}
+				int secondWord = Sha1.reduce(firstWordHash, offset);
+				int[] secondWordHash = new int[Sha1.DIGEST_INTS];
+				sha1.hash(secondWord, secondWordHash);
+				int preimage2 = getPreimage(startWord, secondWordHash, offset,
+						sha1, hash);
+				if (preimage2 != secondWord) {
+					System.out.println("failed! " + toHexString(secondWord)
+							+ " can't be gotten from "
+							+ toHexString(secondWordHash));
+				}
 			}
 		}
-		System.out.println(failCount + " out of " + table.size()
+		System.out.println(failCount + " out of " + total
 				+ " in the table failed");
 		return failCount > 0;
 	}
@@ -389,68 +946,91 @@ public class Rainbow {
 		bw.close();
 	}
 
-	private static void readTableFromFile() throws Exception {
-		Scanner sc = new Scanner(new BufferedInputStream(new FileInputStream(
-				"table.data")));
-		System.out.println(TABLE_LENGTH);
-		while (sc.hasNext()) {
-			String finalHashString = sc.next();
-			String originalWordString = sc.next();
-			table.put(finalHashString, originalWordString);
-		}
-		System.out.println("File read. Table size: "
-				+ (table.size() + table2.size()));
-		sc.close();
+	private static void readTableFromFile(int t) throws Exception {
+		if (COMPRESSED) {
+			CompressedTable file = CompressedTable.open(tableFilename(t));
+			checkParameters(t, file.chainLength, file.tableLength, file.seed,
+					file.reduceVariant, file.reduceOffset, file.checkBits,
+					file.indexBits);
+			endpoints[t] = file;
+		} else {
+			TableFile file = TableFile.open(tableFilename(t));
+			checkParameters(t, file.chainLength, file.tableLength, file.seed,
+					file.reduceVariant, file.reduceOffset, file.checkBits,
+					file.indexBits);
+			endpoints[t] = file;
+		}
+		System.out.println("File read. Table size: " + endpoints[t].size()
+				+ ", " + endpoints[t].bytes() + " bytes");
 	}
 
-	private static void readNaiveTableFromFile() throws Exception {
-		Scanner sc = new Scanner(new BufferedInputStream(new FileInputStream(
-				"complete-table.data")));
-		System.out.println(NAIVE_TABLE_LENGTH / 2);
-		for (int i = 0; i < ((int) NAIVE_TABLE_LENGTH / 2); i++) {
-			if (i % 1000000 == 0)
-				System.out.println(i);
-			String finalHashString = sc.next();
-			String originalWordString = sc.next();
-			table.put(finalHashString, originalWordString);
+	private static void checkParameters(int t, int chainLength,
+			int tableLength, int seed, int reduceVariant, int reduceOffset,
+			int checkBits, int indexBits) throws IOException {
+		if (chainLength != CHAIN_LENGTH || tableLength != TABLE_LENGTH
+				|| seed != SEED || reduceVariant != REDUCE_VARIANT
+				|| reduceOffset != reduceOffset(t)
+				|| checkBits != CheckBits.COUNT
+				|| (indexBits != 0) != INDEXED_STARTS) {
+			throw new IOException(tableFilename(t)
+					+ " was built with different parameters");
 		}
-		System.out.println("next table");
-		for (int i = (int) (NAIVE_TABLE_LENGTH / 2); i < NAIVE_TABLE_LENGTH; i++) {
-			if (i % 1000000 == 0)
-				System.out.println(i);
-			String finalHashString = sc.next();
-			String originalWordString = sc.next();
-			table2.put(finalHashString, originalWordString);
-		}
-		System.out.println("File read. Table size: "
-				+ (table.size() + table2.size()));
-		sc.close();
 	}
 
-	private static void solveNaive() throws Exception {
+	/**
+	 * Looks digests up in a sorted exhaustive table, checking each word with
+	 * the same first 40 bits since only those bits of the digest are stored.
+	 */
+	private static Cracker sortedCracker(final TableFile file) {
+		return new Cracker() {
+			@Override
+			public int search(int[] target) {
+				int[] hash = new int[Sha1.DIGEST_INTS];
+				Sha1 sha1 = new Sha1();
+				for (int word : file.getEach(EndpointHashIndex.key(target))) {
+					sha1.hash(word, hash);
+					if (Arrays.equals(hash, target)) {
+						return word;
+					}
+				}
+				return -1;
+			}
+
+			@Override
+			public int size() {
+				return file.size();
+			}
+
+			@Override
+			public long bytes() {
+				return file.bytes();
+			}
+		};
+	}
+
+	private static void solveNaive(Cracker inverse) throws Exception {
 		BufferedWriter bw = new BufferedWriter(new FileWriter(
 				"naive-result.txt"));
 		Scanner sc = new Scanner(new FileInputStream("SAMPLE_INPUT.data"));
 		int wordsFound = 0;
+		long startTime = System.currentTimeMillis();
 		for (int i = 0; i < 1000; i++) { // for each given hash
 
-			ByteBuffer bf = ByteBuffer.allocate(20);
+			int[] inputHash = new int[Sha1.DIGEST_INTS];
 			for (int j = 0; j < 5; j++) {
-				bf.putInt((int) sc.nextLong(16));
+				inputHash[j] = (int) sc.nextLong(16);
 			}
 
-			byte[] inputHash = bf.array();
-			String inputHashString = toHexString(inputHash);
-			if (table.containsKey(inputHashString)) {
+			int word = inverse.search(inputHash);
+			if (word >= 0) {
 				wordsFound++;
-				bw.write(table.get(inputHashString) + "\n");
-			} else if (table2.containsKey(inputHashString)) {
-				wordsFound++;
-				bw.write(table2.get(inputHashString) + "\n");
+				bw.write(toHexString(word) + "\n");
 			} else {
 				bw.write("0\n");
 			}
 		}
+		System.out.println("Time taken for naive lookups: "
+				+ (System.currentTimeMillis() - startTime) + " milliseconds");
 		bw.write("Total Words Found: " + wordsFound);
 		sc.close();
 		bw.close();
@@ -459,40 +1039,23 @@ public class Rainbow {
 	private static void solveNaiveWithoutTable() throws Exception {
 		BufferedWriter bw = new BufferedWriter(new FileWriter(
 				"naive-result.txt"));
-		Scanner sc = new Scanner(new FileInputStream("SAMPLE_INPUT.data"));
+		readInputFile();
+		long startTime = System.currentTimeMillis();
+		// one pass over the table for all the digests
+		int[] results = new TableScan(hashesToCrack).scan(
+				"complete-table.data", pool);
 		int wordsFound = 0;
-		for (int i = 0; i < 1000; i++) { // for each given hash
-			System.out.println("word number " + i);
-			ByteBuffer bf = ByteBuffer.allocate(20);
-			for (int j = 0; j < 5; j++) {
-				bf.putInt((int) sc.nextLong(16));
-			}
-
-			byte[] inputHash = bf.array();
-			String inputHashString = toHexString(inputHash);
-			boolean got = false;
-			Scanner scTable = new Scanner(new FileInputStream(
-					"complete-table.data"));
-			for (int j = 0; j < NAIVE_TABLE_LENGTH; j++) {
-				if (j % 1000000 == 0)
-					System.out.println(j);
-				String[] hashWordPair = scTable.nextLine().split("\\s+");
-				if (hashWordPair[0].equals(inputHashString)) {
-					wordsFound++;
-					bw.write(hashWordPair[1] + "\n");
-					bw.flush();
-					got = true;
-					break;
-				}
-			}
-			if (!got) {
+		for (int word : results) {
+			if (word >= 0) {
+				wordsFound++;
+				bw.write(toHexString(word) + "\n");
+			} else {
 				bw.write("0\n");
-				bw.flush();
 			}
-			scTable.close();
 		}
+		System.out.println("Time taken for scan: "
+				+ (System.currentTimeMillis() - startTime) + " milliseconds");
 		bw.write("Total Words Found: " + wordsFound);
-		sc.close();
 		bw.close();
 	}
 
@@ -0,0 +1,114 @@
+/**
+ * SHA-1 specialised for the 3 byte words of the rainbow table. A 24 bit
+ * message always fits one block whose padding and length words are fixed, so
+ * only the first message word changes between calls. Digests are written into
+ * a caller-owned int[5], most significant word first, and nothing is allocated
+ * per hash.
+ *
+ * An instance holds the message schedule and must not be shared by threads.
+ */
+final class Sha1 {
+
+	static final int			DIGEST_INTS	= 5;
+
+	private static final int	H0			= 0x67452301;
+	private static final int	H1			= 0xefcdab89;
+	private static final int	H2			= 0x98badcfe;
+	private static final int	H3			= 0x10325476;
+	private static final int	H4			= 0xc3d2e1f0;
+
+	private final int[]			w			= new int[80];
+
+	Sha1() {
+		// w[1..14] stay zero, w[15] is the message length in bits
+		w[15] = 24;
+	}
+
+	/**
+	 * Hashes the word held in the low 24 bits of word into digest.
+	 */
+	void hash(int word, int[] digest) {
+		int[] w = this.w;
+		w[0] = (word << 8) | 0x80;
+		for (int t = 16; t < 80; t++) {
+			w[t] = Integer.rotateLeft(w[t - 3] ^ w[t - 8] ^ w[t - 14]
+					^ w[t - 16], 1);
+		}
+
+		int a = H0;
+		int b = H1;
+		int c = H2;
+		int d = H3;
+		int e = H4;
+		int temp;
+		for (int t = 0; t < 20; t++) {
+			temp = Integer.rotateLeft(a, 5) + ((b & c) | (~b & d)) + e
+					+ 0x5a827999 + w[t];
+			e = d;
+			d = c;
+			c = Integer.rotateLeft(b, 30);
+			b = a;
+			a = temp;
+		}
+		for (int t = 20; t < 40; t++) {
+			temp = Integer.rotateLeft(a, 5) + (b ^ c ^ d) + e + 0x6ed9eba1
+					+ w[t];
+			e = d;
+			d = c;
+			c = Integer.rotateLeft(b, 30);
+			b = a;
+			a = temp;
+		}
+		for (int t = 40; t < 60; t++) {
+			temp = Integer.rotateLeft(a, 5) + ((b & c) | (b & d) | (c & d))
+					+ e + 0x8f1bbcdc + w[t];
+			e = d;
+			d = c;
+			c = Integer.rotateLeft(b, 30);
+			b = a;
+			a = temp;
+		}
+		for (int t = 60; t < 80; t++) {
+			temp = Integer.rotateLeft(a, 5) + (b ^ c ^ d) + e + 0xca62c1d6
+					+ w[t];
+			e = d;
+			d = c;
+			c = Integer.rotateLeft(b, 30);
+			b = a;
+			a = temp;
+		}
+		digest[0] = H0 + a;
+		digest[1] = H1 + b;
+		digest[2] = H2 + c;
+		digest[3] = H3 + d;
+		digest[4] = H4 + e;
+	}
+
+	/**
+	 * Same reduction as Rainbow.reduce(), on a digest held as ints.
+	 */
+	static int reduce(int[] digest, int iteration) {
+		int start = iteration % 17;
+		int i = start >> 2;
+		int shift = (start & 3) << 3;
+		int bytes;
+		if (shift <= 8) {
+			bytes = digest[i] >>> (8 - shift);
+		} else {
+			bytes = (digest[i] << (shift - 8))
+					| (digest[i + 1] >>> (40 - shift));
+		}
+		int b0 = (bytes >>> 16) + (71 * iteration) % 251;
+		int b1 = (bytes >>> 8) + (107 * iteration) % 251;
+		int b2 = bytes + (197 * iteration) % 251;
+		return ((b0 & 0xff) << 16) | ((b1 & 0xff) << 8) | (b2 & 0xff);
+	}
+
+	/**
+	 * One chain step: hashes word into digest and returns the next word.
+	 */
+	int hashReduce(int word, int iteration, int[] digest) {
+		hash(word, digest);
+		return reduce(digest, iteration);
+	}
+}
@@ -0,0 +1,177 @@
+/**
+ * Runs LANES independent 3 byte SHA-1 computations in lockstep. Each working
+ * variable is a run of LANES ints in one array and every round is a plain loop
+ * over the lanes at constant offsets, which the JIT turns into vector
+ * instructions. Keeping all the variables in one array lets it prove that the
+ * loads and stores of a round do not overlap.
+ *
+ * words holds one word per lane and digest[i][lane] holds word i of each
+ * lane's digest. hash() reads words and writes digest, reduce() does the
+ * reverse. An instance must not be shared by threads.
+ */
+final class Sha1Lanes {
+
+	static final int			LANES	= 16;
+
+	private static final int	A		= 0;
+	private static final int	B		= LANES;
+	private static final int	C		= 2 * LANES;
+	private static final int	D		= 3 * LANES;
+	private static final int	E		= 4 * LANES;
+
+	final int[]					words	= new int[LANES];
+	final int[][]				digest	= new int[Sha1.DIGEST_INTS][LANES];
+
+	// message schedule, word t of lane l at w[t * LANES + l]
+	private final int[]			w		= new int[80 * LANES];
+	// working variables, one run of LANES ints per variable
+	private final int[]			s		= new int[5 * LANES];
+
+	Sha1Lanes() {
+		// w[1..14] stay zero, w[15] is the message length in bits
+		for (int l = 0; l < LANES; l++) {
+			w[15 * LANES + l] = 24;
+		}
+	}
+
+	void hash() {
+		int[] w = this.w;
+		for (int l = 0; l < LANES; l++) {
+			w[l] = (words[l] << 8) | 0x80;
+		}
+		for (int t = 16 * LANES; t < 80 * LANES; t++) {
+			int x = w[t - 3 * LANES] ^ w[t - 8 * LANES] ^ w[t - 14 * LANES]
+					^ w[t - 16 * LANES];
+			w[t] = (x << 1) | (x >>> 31);
+		}
+		int[] s = this.s;
+		for (int l = 0; l < LANES; l++) {
+			s[A + l] = 0x67452301;
+			s[B + l] = 0xefcdab89;
+			s[C + l] = 0x98badcfe;
+			s[D + l] = 0x10325476;
+			s[E + l] = 0xc3d2e1f0;
+		}
+
+		// rounds rename the variables instead of moving the lanes, so each
+		// group of five rounds brings them back to A, B, C, D, E
+		for (int t = 0; t < 20; t += 5) {
+			choose(A, B, C, D, E, t);
+			choose(E, A, B, C, D, t + 1);
+			choose(D, E, A, B, C, t + 2);
+			choose(C, D, E, A, B, t + 3);
+			choose(B, C, D, E, A, t + 4);
+		}
+		for (int t = 20; t < 40; t += 5) {
+			parity(A, B, C, D, E, t, 0x6ed9eba1);
+			parity(E, A, B, C, D, t + 1, 0x6ed9eba1);
+			parity(D, E, A, B, C, t + 2, 0x6ed9eba1);
+			parity(C, D, E, A, B, t + 3, 0x6ed9eba1);
+			parity(B, C, D, E, A, t + 4, 0x6ed9eba1);
+		}
+		for (int t = 40; t < 60; t += 5) {
+			majority(A, B, C, D, E, t);
+			majority(E, A, B, C, D, t + 1);
+			majority(D, E, A, B, C, t + 2);
+			majority(C, D, E, A, B, t + 3);
+			majority(B, C, D, E, A, t + 4);
+		}
+		for (int t = 60; t < 80; t += 5) {
+			parity(A, B, C, D, E, t, 0xca62c1d6);
+			parity(E, A, B, C, D, t + 1, 0xca62c1d6);
+			parity(D, E, A, B, C, t + 2, 0xca62c1d6);
+			parity(C, D, E, A, B, t + 3, 0xca62c1d6);
+			parity(B, C, D, E, A, t + 4, 0xca62c1d6);
+		}
+
+		int[] h0 = digest[0];
+		int[] h1 = digest[1];
+		int[] h2 = digest[2];
+		int[] h3 = digest[3];
+		int[] h4 = digest[4];
+		for (int l = 0; l < LANES; l++) {
+			h0[l] = 0x67452301 + s[A + l];
+			h1[l] = 0xefcdab89 + s[B + l];
+			h2[l] = 0x98badcfe + s[C + l];
+			h3[l] = 0x10325476 + s[D + l];
+			h4[l] = 0xc3d2e1f0 + s[E + l];
+		}
+	}
+
+	// one round: e += rotl(a, 5) + f(b, c, d) + k + w[t], b = rotl(b, 30),
+	// after which the caller's e plays the part of a
+
+	private void choose(int a, int b, int c, int d, int e, int t) {
+		int[] s = this.s;
+		int base = t * LANES;
+		for (int l = 0; l < LANES; l++) {
+			int x = s[a + l];
+			int y = s[b + l];
+			s[e + l] += ((x << 5) | (x >>> 27))
+					+ ((y & s[c + l]) | (~y & s[d + l])) + 0x5a827999
+					+ w[base + l];
+			s[b + l] = (y << 30) | (y >>> 2);
+		}
+	}
+
+	private void parity(int a, int b, int c, int d, int e, int t, int k) {
+		int[] s = this.s;
+		int base = t * LANES;
+		for (int l = 0; l < LANES; l++) {
+			int x = s[a + l];
+			int y = s[b + l];
+			s[e + l] += ((x << 5) | (x >>> 27)) + (y ^ s[c + l] ^ s[d + l])
+					+ k + w[base + l];
+			s[b + l] = (y << 30) | (y >>> 2);
+		}
+	}
+
+	private void majority(int a, int b, int c, int d, int e, int t) {
+		int[] s = this.s;
+		int base = t * LANES;
+		for (int l = 0; l < LANES; l++) {
+			int x = s[a + l];
+			int y = s[b + l];
+			int z = s[c + l];
+			int v = s[d + l];
+			s[e + l] += ((x << 5) | (x >>> 27))
+					+ ((y & z) | (y & v) | (z & v)) + 0x8f1bbcdc + w[base + l];
+			s[b + l] = (y << 30) | (y >>> 2);
+		}
+	}
+
+	/**
+	 * Same reduction as Sha1.reduce(), applied to every lane with the same
+	 * iteration.
+	 */
+	void reduce(int iteration) {
+		int start = iteration % 17;
+		int[] hi = digest[start >> 2];
+		int shift = (start & 3) << 3;
+		int add = (((71 * iteration) % 251) << 16)
+				+ (((107 * iteration) % 251) << 8) + (197 * iteration) % 251;
+		if (shift <= 8) {
+			for (int l = 0; l < LANES; l++) {
+				words[l] = addBytes(hi[l] >>> (8 - shift), add);
+			}
+		} else {
+			int[] lo = digest[(start >> 2) + 1];
+			for (int l = 0; l < LANES; l++) {
+				words[l] = addBytes((hi[l] << (shift - 8))
+						| (lo[l] >>> (40 - shift)), add);
+			}
+		}
+	}
+
+	// adds the three bytes of add to the low three bytes of x without carries
+	private static int addBytes(int x, int add) {
+		return ((((x >>> 16) + (add >>> 16)) & 0xff) << 16)
+				| ((((x >>> 8) + (add >>> 8)) & 0xff) << 8)
+				| ((x + add) & 0xff);
+	}
+
+	long key(int lane) {
+		return ((long) digest[0][lane] << 32)
+				| (digest[1][lane] & 0xffffffffL);
+	}
+}
@@ -0,0 +1,240 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Binary rainbow table file. A fixed header is followed by one 8 byte record
+ * per chain holding the top KEY_BITS bits of the chain's endpoint and its 24
+ * bit start word, or its chain index if indexBits is not 0. When the table
+ * has check bits they replace the last bits of the endpoint. Records are
+ * sorted by endpoint, so lookups are a binary search straight over the
+ * read-only mapping of the file, which is shared through the page cache by
+ * every process that opens it.
+ */
+class TableFile implements EndpointIndex {
+
+	static final int			MAGIC			= 0x52425432;	// "RBT2"
+	static final int			HEADER_BYTES	= 40;
+	static final int			RECORD_BYTES	= 8;
+	static final int			KEY_BITS		= 40;
+
+	final int					chainLength;
+	final int					tableLength;
+	final int					seed;
+	final int					reduceVariant;
+	final int					reduceOffset;
+	final int					checkBits;
+	// bits of the chain indices in place of start words, or 0
+	final int					indexBits;
+
+	private final ByteBuffer	records;
+	private final int			count;
+
+	private TableFile(ByteBuffer header, ByteBuffer records, int count) {
+		this.chainLength = header.getInt(4);
+		this.tableLength = header.getInt(8);
+		this.seed = header.getInt(12);
+		this.reduceVariant = header.getInt(16);
+		this.reduceOffset = header.getInt(28);
+		this.checkBits = header.getInt(32);
+		this.indexBits = header.getInt(36);
+		this.records = records;
+		this.count = count;
+	}
+
+	/**
+	 * Packs the first KEY_BITS bits of an endpoint digest and a start word
+	 * into one record.
+	 */
+	static long record(long key, int start) {
+		return (key << 24) | (start & 0xffffff);
+	}
+
+	/**
+	 * Packs the first KEY_BITS bits of an endpoint digest and an index entry
+	 * into one record, the entry's check bits taking the place of the last
+	 * checkBits bits of the endpoint.
+	 */
+	static long record(long key, int entry, int checkBits) {
+		return record(((key >>> checkBits) << checkBits) | (entry >>> 24),
+				entry);
+	}
+
+	/**
+	 * Sorts the first count records and writes them out with a header
+	 * describing the table parameters.
+	 */
+	static void write(String filename, long[] records, int count,
+			int chainLength, int tableLength, int seed, int reduceVariant,
+			int reduceOffset, int checkBits, int indexBits)
+			throws IOException {
+		// flip the sign bit so the signed sort gives unsigned endpoint order
+		for (int i = 0; i < count; i++) {
+			records[i] ^= Long.MIN_VALUE;
+		}
+		Arrays.sort(records, 0, count);
+		for (int i = 0; i < count; i++) {
+			records[i] ^= Long.MIN_VALUE;
+		}
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(filename), 1 << 16));
+		try {
+			writeHeader(out, count, chainLength, tableLength, seed,
+					reduceVariant, reduceOffset, checkBits, indexBits);
+			for (int i = 0; i < count; i++) {
+				out.writeLong(records[i]);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes the header for count records, which the caller then writes in
+	 * endpoint order.
+	 */
+	static void writeHeader(DataOutputStream out, int count, int chainLength,
+			int tableLength, int seed, int reduceVariant, int reduceOffset,
+			int checkBits, int indexBits) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(chainLength);
+		out.writeInt(tableLength);
+		out.writeInt(seed);
+		out.writeInt(reduceVariant);
+		out.writeInt(KEY_BITS);
+		out.writeInt(count);
+		out.writeInt(reduceOffset);
+		out.writeInt(checkBits);
+		out.writeInt(indexBits);
+	}
+
+	static TableFile open(String filename) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(filename, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					HEADER_BYTES);
+			if (header.getInt(0) != MAGIC || header.getInt(20) != KEY_BITS) {
+				throw new IOException(filename + " is not a rainbow table file");
+			}
+			int count = header.getInt(24);
+			ByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY,
+					HEADER_BYTES, (long) count * RECORD_BYTES);
+			// the mapping stays valid after the channel is closed
+			return new TableFile(header, records, count);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Only the top keyBits() bits of the key are compared. Safe to call from
+	 * several threads.
+	 */
+	@Override
+	public int get(long endpoint) {
+		long key = endpoint >>> (64 - keyBits());
+		return startAt(lowerBound(key, 0), key);
+	}
+
+	/**
+	 * Returns the entries of every record whose key matches the top keyBits()
+	 * bits of endpoint, for tables in which several records can share a key.
+	 * Safe to call from several threads.
+	 */
+	int[] getEach(long endpoint) {
+		long key = endpoint >>> (64 - keyBits());
+		int lo = lowerBound(key, 0);
+		int hi = lo;
+		while (startAt(hi, key) >= 0) {
+			hi++;
+		}
+		int[] entries = new int[hi - lo];
+		for (int i = lo; i < hi; i++) {
+			entries[i - lo] = startAt(i, key);
+		}
+		return entries;
+	}
+
+	/**
+	 * Probes the keys in endpoint order, so the records are read front to
+	 * back in a single pass for every 2^24 keys, the most whose positions fit
+	 * in the start field of a record.
+	 */
+	@Override
+	public void getAll(long[] keys, int count, int[] starts) {
+		long[] order = new long[Math.min(count, 1 << 24)];
+		for (int base = 0; base < count; base += 1 << 24) {
+			int chunk = Math.min(count - base, 1 << 24);
+			for (int i = 0; i < chunk; i++) {
+				order[i] = record(keys[base + i] >>> (64 - KEY_BITS), i)
+						^ Long.MIN_VALUE;
+			}
+			Arrays.sort(order, 0, chunk);
+			int lo = 0;
+			for (int n = 0; n < chunk; n++) {
+				long o = order[n] ^ Long.MIN_VALUE;
+				long key = o >>> (24 + checkBits);
+				lo = lowerBound(key, lo);
+				starts[base + (int) (o & 0xffffff)] = startAt(lo, key);
+			}
+		}
+	}
+
+	// index of the first record at or after lo whose key is not below key
+	private int lowerBound(long key, int lo) {
+		int hi = count;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			long record = records.getLong(mid * RECORD_BYTES);
+			if ((record >>> (24 + checkBits)) < key) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	private int startAt(int i, long key) {
+		if (i < count) {
+			long record = records.getLong(i * RECORD_BYTES);
+			if ((record >>> (24 + checkBits)) == key) {
+				int check = (int) (record >>> 24) & ((1 << checkBits) - 1);
+				return (int) (record & 0xffffff) | (check << 24);
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public int keyBits() {
+		return KEY_BITS - checkBits;
+	}
+
+	@Override
+	public long[] keys() {
+		long[] keys = new long[count];
+		for (int i = 0; i < count; i++) {
+			int shift = 24 + checkBits;
+			keys[i] = (records.getLong(i * RECORD_BYTES) >>> shift) << shift;
+		}
+		return keys;
+	}
+
+	@Override
+	public int size() {
+		return count;
+	}
+
+	@Override
+	public long bytes() {
+		return HEADER_BYTES + (long) count * RECORD_BYTES;
+	}
+}
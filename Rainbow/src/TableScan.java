@@ -0,0 +1,177 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Looks up many digests in a text table of "digest word" lines with a single
+ * pass over the file. The targets go into a hash index on their first 64
+ * bits, and the file is mapped CHUNK_BYTES at a time. Each chunk is cut into
+ * pieces that are parsed in parallel, a piece owning the lines that start in
+ * it. Lines are parsed straight from the mapping without building strings,
+ * and the scan stops once every target is found.
+ */
+class TableScan {
+
+	static final int				CHUNK_BYTES	= 1 << 26;
+
+	private static final int		MAX_LINE	= 128;
+	private static final int		PIECE_BYTES	= 1 << 20;
+
+	private final List<int[]>		targets;
+	private final EndpointHashIndex	index;
+	// the first target with the same digest as each target
+	private final int[]				same;
+	private final int[]				results;
+	private final AtomicInteger		remaining;
+
+	TableScan(List<int[]> targets) {
+		this.targets = targets;
+		this.index = new EndpointHashIndex(targets.size());
+		this.same = new int[targets.size()];
+		this.results = new int[targets.size()];
+		int distinct = 0;
+		for (int i = 0; i < targets.size(); i++) {
+			long key = EndpointHashIndex.key(targets.get(i));
+			same[i] = i;
+			if (index.put(key, i)) {
+				distinct++;
+			} else {
+				same[i] = index.get(key);
+			}
+			results[i] = -1;
+		}
+		this.remaining = new AtomicInteger(distinct);
+	}
+
+	/**
+	 * @return the word found for each target, or -1, in the order of targets
+	 */
+	int[] scan(String filename, ForkJoinPool pool) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(filename, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			long size = channel.size();
+			long pos = 0;
+			while (pos < size && remaining.get() > 0) {
+				// map from the byte before the chunk, to tell whether its
+				// first line starts there, to a little past it, to finish
+				// its last line
+				long from = Math.max(0, pos - 1);
+				int lo = (int) (pos - from);
+				int hi = lo + (int) Math.min(size - pos, CHUNK_BYTES);
+				ByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY,
+						from, Math.min(size - from, hi + MAX_LINE));
+				pool.invoke(new ScanTask(chunk, lo, hi));
+				pos += CHUNK_BYTES;
+			}
+		} finally {
+			file.close();
+		}
+		for (int i = 0; i < results.length; i++) {
+			results[i] = results[same[i]];
+		}
+		return results;
+	}
+
+	private static int hexValue(byte c) {
+		if (c >= '0' && c <= '9') {
+			return c - '0';
+		}
+		return (c | 0x20) - 'a' + 10;
+	}
+
+	private static boolean isHex(byte c) {
+		int lower = c | 0x20;
+		return (c >= '0' && c <= '9') || (lower >= 'a' && lower <= 'f');
+	}
+
+	/**
+	 * Parses the lines of chunk that start in [lo, hi).
+	 */
+	private class ScanTask extends RecursiveAction {
+
+		private static final long	serialVersionUID	= 1L;
+
+		private final ByteBuffer	chunk;
+		private final int			lo;
+		private final int			hi;
+
+		ScanTask(ByteBuffer chunk, int lo, int hi) {
+			this.chunk = chunk;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		protected void compute() {
+			if (hi - lo > PIECE_BYTES) {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new ScanTask(chunk, lo, mid), new ScanTask(chunk,
+						mid, hi));
+				return;
+			}
+			ByteBuffer chunk = this.chunk;
+			int limit = chunk.limit();
+			int p = lo;
+			// a line that starts before lo belongs to the previous piece
+			if (p > 0 && chunk.get(p - 1) != '\n') {
+				while (p < limit && chunk.get(p) != '\n') {
+					p++;
+				}
+				p++;
+			}
+			int[] digest = new int[Sha1.DIGEST_INTS];
+			while (p < hi && remaining.get() > 0) {
+				int start = p;
+				long key = 0;
+				int digits = 0;
+				while (p < limit && isHex(chunk.get(p))) {
+					if (digits < 16) {
+						key = (key << 4) | hexValue(chunk.get(p));
+					}
+					digits++;
+					p++;
+				}
+				int slot = -1;
+				if (digits == 8 * Sha1.DIGEST_INTS) {
+					slot = index.get(key);
+				}
+				if (slot >= 0) {
+					for (int i = 0; i < Sha1.DIGEST_INTS; i++) {
+						int at = start + 8 * i;
+						int d = 0;
+						for (int n = 0; n < 8; n++) {
+							d = (d << 4) | hexValue(chunk.get(at + n));
+						}
+						digest[i] = d;
+					}
+					while (p < limit && !isHex(chunk.get(p))) {
+						p++;
+					}
+					int word = 0;
+					while (p < limit && isHex(chunk.get(p))) {
+						word = (word << 4) | hexValue(chunk.get(p++));
+					}
+					if (Arrays.equals(digest, targets.get(slot))
+							&& results[slot] < 0) {
+						results[slot] = word;
+						remaining.decrementAndGet();
+						System.out.println("Found "
+								+ Rainbow.toHexString(digest) + " "
+								+ Rainbow.toHexString(word));
+					}
+				}
+				while (p < limit && chunk.get(p) != '\n') {
+					p++;
+				}
+				p++;
+			}
+		}
+	}
+}
@@ -0,0 +1,282 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Keeps the tables resident and answers lookups on a loopback TCP port.
+ * Clients send one digest per line, either as 40 hex digits or as five
+ * whitespace separated words like SAMPLE_INPUT.data. Each digest is answered
+ * as soon as it is resolved with a line holding the digest and its preimage,
+ * or 0 if there is none, so answers on a connection may come out of order.
+ * A digest that could not be searched is answered with "error" and the
+ * digest. A line holding "metrics" is answered with Metrics.toJson() instead.
+ *
+ * Connections only parse and queue digests. One dispatcher thread takes
+ * whatever has queued up while the previous batch ran and cracks it as one
+ * batch, so an idle server answers a single digest right away and a busy one
+ * moves to the batched, position-major search. Latencies are measured from
+ * when a digest was queued, so they include the wait for the batch before.
+ */
+class TableServer {
+
+	private static final int					MAX_BATCH	= 4096;
+
+	private final Cracker						cracker;
+	private final BatchCracker					batchCracker;
+	private final ForkJoinPool					pool;
+	private final ExecutorService				connections	= Executors
+																	.newCachedThreadPool();
+	private final LinkedBlockingQueue<Request>	queue		= new LinkedBlockingQueue<>();
+
+	TableServer(Cracker cracker, EndpointIndex[] tables, ForkJoinPool pool,
+			TailCache cache) {
+		this.cracker = cracker;
+		this.batchCracker = new BatchCracker(tables, pool, cache);
+		this.pool = pool;
+	}
+
+	/**
+	 * Accepts connections on 127.0.0.1:port until the process is stopped.
+	 */
+	void serve(int port) throws IOException {
+		Thread dispatcher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				dispatch();
+			}
+		}, "dispatcher");
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+
+		ServerSocket server = new ServerSocket(port, 64,
+				InetAddress.getLoopbackAddress());
+		System.out.println("Serving on " + server.getLocalSocketAddress());
+		try {
+			while (true) {
+				connections.execute(new Connection(server.accept()));
+			}
+		} finally {
+			server.close();
+			connections.shutdownNow();
+		}
+	}
+
+	private void dispatch() {
+		final List<Request> batch = new ArrayList<>();
+		List<int[]> targets = new ArrayList<>();
+		try {
+			while (true) {
+				batch.add(queue.take());
+				queue.drainTo(batch, MAX_BATCH - 1);
+				for (Request request : batch) {
+					targets.add(request.target);
+				}
+				try {
+					if (batch.size() < Sha1Lanes.LANES) {
+						// too few to fill the lanes, search each one on its
+						// own
+						pool.invoke(new SearchTask(batch, 0, batch.size()));
+					} else {
+						batchCracker.searchAll(targets,
+								new BatchCracker.Listener() {
+									@Override
+									public void resolved(int index, int word) {
+										batch.get(index).answer(word);
+									}
+								});
+					}
+				} catch (RuntimeException e) {
+					System.out.println("Batch of " + batch.size()
+							+ " failed: " + e);
+					for (Request request : batch) {
+						request.fail();
+					}
+				}
+				batch.clear();
+				targets.clear();
+			}
+		} catch (InterruptedException e) {
+			// server is shutting down
+		}
+	}
+
+	/**
+	 * @return the digest on line, or null if it is neither 40 hex digits nor
+	 *         five hex words
+	 */
+	static int[] parseDigest(String line) {
+		String[] words = line.trim().split("\\s+");
+		if (words.length == 1 && words[0].length() == 8 * Sha1.DIGEST_INTS) {
+			words = new String[Sha1.DIGEST_INTS];
+			for (int i = 0; i < Sha1.DIGEST_INTS; i++) {
+				words[i] = line.trim().substring(8 * i, 8 * i + 8);
+			}
+		}
+		if (words.length != Sha1.DIGEST_INTS) {
+			return null;
+		}
+		int[] digest = new int[Sha1.DIGEST_INTS];
+		try {
+			for (int i = 0; i < Sha1.DIGEST_INTS; i++) {
+				long word = Long.parseLong(words[i], 16);
+				if (word < 0 || word > 0xffffffffL) {
+					return null;
+				}
+				digest[i] = (int) word;
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		return digest;
+	}
+
+	private static class Request {
+
+		final int[]			target;
+		final Connection	connection;
+		final long			queued	= System.nanoTime();
+		private boolean		answered;
+
+		Request(int[] target, Connection connection) {
+			this.target = target;
+			this.connection = connection;
+		}
+
+		void answer(int word) {
+			if (claim()) {
+				Metrics.latency(System.nanoTime() - queued);
+				connection.reply(Rainbow.toHexString(target) + " "
+						+ (word >= 0 ? Rainbow.toHexString(word) : "0"));
+				connection.finish(1);
+			}
+		}
+
+		// answers with an error unless already answered
+		void fail() {
+			if (claim()) {
+				connection.reply("error " + Rainbow.toHexString(target));
+				connection.finish(1);
+			}
+		}
+
+		// true for the first answer only
+		private synchronized boolean claim() {
+			boolean first = !answered;
+			answered = true;
+			return first;
+		}
+	}
+
+	/**
+	 * Searches requests lo..hi one at a time, answering each as soon as it is
+	 * done.
+	 */
+	private class SearchTask extends RecursiveAction {
+
+		private static final long	serialVersionUID	= 1L;
+
+		private final List<Request>	requests;
+		private final int			lo;
+		private final int			hi;
+
+		SearchTask(List<Request> requests, int lo, int hi) {
+			this.requests = requests;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		protected void compute() {
+			if (hi - lo > 1) {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new SearchTask(requests, lo, mid), new SearchTask(
+						requests, mid, hi));
+				return;
+			}
+			Request request = requests.get(lo);
+			request.answer(cracker.search(request.target));
+		}
+	}
+
+	private class Connection implements Runnable {
+
+		private final Socket	socket;
+		private Writer			out;
+		// queued digests, plus one while the client may still send more
+		private int				outstanding	= 1;
+
+		Connection(Socket socket) {
+			this.socket = socket;
+		}
+
+		@Override
+		public void run() {
+			try {
+				socket.setTcpNoDelay(true);
+				out = new BufferedWriter(new OutputStreamWriter(
+						socket.getOutputStream(), StandardCharsets.US_ASCII));
+				BufferedReader in = new BufferedReader(new InputStreamReader(
+						socket.getInputStream(), StandardCharsets.US_ASCII));
+				String line;
+				while ((line = in.readLine()) != null) {
+					if (line.trim().isEmpty()) {
+						continue;
+					}
+					if (line.trim().equals("metrics")) {
+						reply(Metrics.toJson());
+						continue;
+					}
+					int[] target = parseDigest(line);
+					if (target == null) {
+						reply("error " + line.trim());
+					} else {
+						synchronized (this) {
+							outstanding++;
+						}
+						queue.add(new Request(target, this));
+					}
+				}
+			} catch (IOException e) {
+				System.out.println("Connection closed: " + e.getMessage());
+			}
+			finish(1);
+		}
+
+		// closes the socket once the input is done and everything is answered
+		synchronized void finish(int answered) {
+			outstanding -= answered;
+			if (outstanding == 0) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// already gone
+				}
+			}
+		}
+
+		// the client may have gone, in which case the answer is dropped
+		synchronized void reply(String line) {
+			try {
+				out.write(line);
+				out.write('\n');
+				out.flush();
+			} catch (IOException e) {
+				// nothing left to answer
+			}
+		}
+	}
+}
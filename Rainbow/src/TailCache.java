@@ -0,0 +1,84 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Memo of tail walks. The walk from the word at a chain position to the end
+ * of the chain does not depend on how the word was reached, so once one walk
+ * has passed through (position, word), any later walk that reduces to the
+ * same word at the same position can take the endpoint key and the check
+ * bits from here and stop.
+ *
+ * The cache is a direct-mapped array of 2^bits slots shared by all threads
+ * without locks, a new entry evicting whatever was in its slot. A slot holds
+ * the endpoint key and the tag XOR the key, so a slot torn by two writers
+ * fails the tag check instead of returning a wrong endpoint.
+ */
+class TailCache {
+
+	private final long[]		slots;
+	private final int			shift;
+
+	private final AtomicLong	lookups	= new AtomicLong();
+	private final AtomicLong	hits	= new AtomicLong();
+	private final AtomicLong	saved	= new AtomicLong();
+
+	TailCache(int bits) {
+		this.slots = new long[2 << bits];
+		this.shift = 64 - bits;
+	}
+
+	// iteration is the position plus the table's reduce offset
+	private static long tag(int iteration, int word) {
+		return ((long) iteration << 24) | word;
+	}
+
+	private int slot(long tag) {
+		return (int) ((tag * 0x9e3779b97f4a7c15L) >>> shift) << 1;
+	}
+
+	/**
+	 * Looks up the tail walk from word at iteration, leaving its endpoint key
+	 * in result[0] and its check bits in result[1].
+	 *
+	 * @return false if the walk is not cached
+	 */
+	boolean get(int iteration, int word, long[] result) {
+		long tag = tag(iteration, word);
+		int slot = slot(tag);
+		long key = slots[slot];
+		long check = slots[slot + 1] ^ key;
+		if (check >>> CheckBits.COUNT != tag) {
+			return false;
+		}
+		result[0] = key;
+		result[1] = check & ((1 << CheckBits.COUNT) - 1);
+		return true;
+	}
+
+	/**
+	 * Caches the endpoint key and the check bits from iteration on of the
+	 * tail walk from word at iteration.
+	 */
+	void put(int iteration, int word, long key, int checkBits) {
+		long tag = tag(iteration, word);
+		int slot = slot(tag);
+		slots[slot] = key;
+		slots[slot + 1] = ((tag << CheckBits.COUNT) | checkBits) ^ key;
+	}
+
+	/**
+	 * Adds the lookups, hits and hashes saved by one task.
+	 */
+	void count(long lookups, long hits, long saved) {
+		this.lookups.addAndGet(lookups);
+		this.hits.addAndGet(hits);
+		this.saved.addAndGet(saved);
+	}
+
+	String stats() {
+		long l = lookups.get();
+		long h = hits.get();
+		return String.format("Tail cache: %d bytes, %d lookups, %d hits "
+				+ "(%.2f%%), %d hashes saved", slots.length * 8L, l, h,
+				l == 0 ? 0.0 : h * 100.0 / l, saved.get());
+	}
+}
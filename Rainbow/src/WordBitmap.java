@@ -0,0 +1,72 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Set of 24 bit words kept as one bit per word, 2 MB for the whole word space.
+ * Words can be added from several threads at once.
+ */
+class WordBitmap {
+
+	static final int				WORD_SPACE	= 1 << 24;
+
+	private final AtomicLongArray	bits		= new AtomicLongArray(
+														WORD_SPACE >>> 6);
+
+	/**
+	 * @return true if word was not in the set before
+	 */
+	boolean add(int word) {
+		int i = word >>> 6;
+		long mask = 1L << word;
+		long old;
+		do {
+			old = bits.get(i);
+			if ((old & mask) != 0) {
+				return false;
+			}
+		} while (!bits.compareAndSet(i, old, old | mask));
+		return true;
+	}
+
+	boolean contains(int word) {
+		return (bits.get(word >>> 6) & (1L << word)) != 0;
+	}
+
+	long size() {
+		long count = 0;
+		for (int i = 0; i < bits.length(); i++) {
+			count += Long.bitCount(bits.get(i));
+		}
+		return count;
+	}
+
+	/**
+	 * @return the percentage of the word space in the set
+	 */
+	double coverage() {
+		return size() * 100.0 / WORD_SPACE;
+	}
+
+	void write(DataOutput out) throws IOException {
+		for (int i = 0; i < bits.length(); i++) {
+			out.writeLong(bits.get(i));
+		}
+	}
+
+	/**
+	 * Replaces the contents with a set saved by write().
+	 */
+	void read(DataInput in) throws IOException {
+		for (int i = 0; i < bits.length(); i++) {
+			bits.set(i, in.readLong());
+		}
+	}
+
+	void clear() {
+		for (int i = 0; i < bits.length(); i++) {
+			bits.set(i, 0);
+		}
+	}
+}